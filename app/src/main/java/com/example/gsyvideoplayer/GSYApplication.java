@@ -45,6 +45,7 @@ public class GSYApplication extends MultiDexApplication {
 
         //CacheFactory.setCacheManager(ExoPlayerCacheManager.class);//exo缓存模式，支持m3u8，只支持exo
         //CacheFactory.setCacheManager(ProxyCacheManager.class);//代理缓存模式，支持所有模式，不支持m3u8等
+        //ProxyCacheManager.instance().prewarm(this, null);//后台预先启动代理，避免首次播放时同步启动
 
         //GSYVideoType.setShowType(GSYVideoType.SCREEN_MATCH_FULL);
         //GSYVideoType.setShowType(GSYVideoType.SCREEN_TYPE_FULL);
@@ -10,6 +10,7 @@ import android.view.Surface;
 
 import androidx.annotation.Nullable;
 
+import com.danikula.videocache.CoalescingDispatcher;
 import com.shuyu.gsyvideoplayer.cache.CacheFactory;
 import com.shuyu.gsyvideoplayer.cache.ICacheManager;
 import com.shuyu.gsyvideoplayer.listener.GSYMediaPlayerListener;
@@ -58,6 +59,11 @@ public abstract class GSYVideoBaseManager implements IMediaPlayer.OnPreparedList
 
     protected Handler mainThreadHandler;
 
+    /**
+     * 缓冲进度等高频回调合并分发，只保留最新值，每帧最多回调一次，和缓存进度回调共用
+     */
+    protected CoalescingDispatcher progressDispatcher;
+
     protected WeakReference<GSYMediaPlayerListener> listener;
 
     protected WeakReference<GSYMediaPlayerListener> lastListener;
@@ -150,6 +156,7 @@ public abstract class GSYVideoBaseManager implements IMediaPlayer.OnPreparedList
     protected void init() {
         mMediaHandler = new MediaHandler((Looper.getMainLooper()));
         mainThreadHandler = new Handler();
+        progressDispatcher = CoalescingDispatcher.getMain();
     }
 
     protected IPlayerManager getPlayManager() {
@@ -231,6 +238,8 @@ public abstract class GSYVideoBaseManager implements IMediaPlayer.OnPreparedList
 
     @Override
     public void releaseMediaPlayer() {
+        // 丢弃还没分发的缓冲进度，避免释放后再回调
+        progressDispatcher.cancel(bufferingUpdateTarget);
         Message msg = new Message();
         msg.what = HANDLER_RELEASE;
         sendMessage(msg);
@@ -281,19 +290,8 @@ public abstract class GSYVideoBaseManager implements IMediaPlayer.OnPreparedList
     }
 
     @Override
-    public void onBufferingUpdate(IMediaPlayer mp, final int percent) {
-        mainThreadHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (listener() != null) {
-                    if (percent > bufferPoint) {
-                        listener().onBufferingUpdate(percent);
-                    } else {
-                        listener().onBufferingUpdate(bufferPoint);
-                    }
-                }
-            }
-        });
+    public void onBufferingUpdate(IMediaPlayer mp, int percent) {
+        progressDispatcher.post(bufferingUpdateTarget, percent, null);
     }
 
     @Override
@@ -662,6 +660,19 @@ public abstract class GSYVideoBaseManager implements IMediaPlayer.OnPreparedList
     }
 
 
+    private final CoalescingDispatcher.Target bufferingUpdateTarget = new CoalescingDispatcher.Target() {
+        @Override
+        public void onDispatch(int percent, Object payload) {
+            if (listener() != null) {
+                if (percent > bufferPoint) {
+                    listener().onBufferingUpdate(percent);
+                } else {
+                    listener().onBufferingUpdate(bufferPoint);
+                }
+            }
+        }
+    };
+
     private Runnable mTimeOutRunnable = new Runnable() {
         @Override
         public void run() {
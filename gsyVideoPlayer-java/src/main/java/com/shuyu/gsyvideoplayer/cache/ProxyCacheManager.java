@@ -5,9 +5,14 @@ import android.net.Uri;
 import android.text.TextUtils;
 
 import com.danikula.videocache.CacheListener;
+import com.danikula.videocache.CacheStats;
 import com.danikula.videocache.HttpProxyCacheServer;
+import com.danikula.videocache.ProxyExecutor;
+import com.danikula.videocache.file.DiskUsage;
 import com.danikula.videocache.file.FileNameGenerator;
 import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.danikula.videocache.file.TotalCountLruDiskUsage;
+import com.danikula.videocache.file.TotalSizeLruDiskUsage;
 import com.shuyu.gsyvideoplayer.utils.CommonUtil;
 import com.shuyu.gsyvideoplayer.utils.FileUtils;
 import com.danikula.videocache.StorageUtils;
@@ -15,6 +20,9 @@ import com.danikula.videocache.StorageUtils;
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.TrustManager;
@@ -32,7 +40,10 @@ public class ProxyCacheManager implements ICacheManager, CacheListener {
     public static int DEFAULT_MAX_COUNT = -1;
 
     //视频代理
-    protected HttpProxyCacheServer proxy;
+    protected volatile HttpProxyCacheServer proxy;
+
+    //后台启动代理的任务
+    private FutureTask<HttpProxyCacheServer> proxyStartTask;
 
 
     protected File mCacheDir;
@@ -76,19 +87,21 @@ public class ProxyCacheManager implements ICacheManager, CacheListener {
         if (header != null) {
             userAgentHeadersInjector.mMapHeadData.putAll(header);
         }
-        if (url.startsWith("http") && !url.contains("127.0.0.1") && !url.contains(".m3u8")) {
-            HttpProxyCacheServer proxy = getProxy(context.getApplicationContext(), cachePath);
+        if (url.startsWith("http") && !url.contains("127.0.0.1")) {
+            //代理还在后台启动中时直接播放原始url，不阻塞播放
+            HttpProxyCacheServer proxy = isProxyStarting() ? null : getProxy(context.getApplicationContext(), cachePath);
             if (proxy != null) {
+                String partition = getCachePartition(cachePath);
                 //此处转换了url，然后再赋值给mUrl。
-                url = proxy.getProxyUrl(url);
+                url = proxy.getProxyUrl(url, partition);
                 mCacheFile = (!url.startsWith("http"));
                 //注册上缓冲监听
                 if (!mCacheFile) {
-                    proxy.registerCacheListener(this, originUrl);
+                    proxy.registerCacheListener(this, originUrl, partition);
                 }
             }
         } else if ((!url.startsWith("http") && !url.startsWith("rtmp")
-                && !url.startsWith("rtsp") && !url.contains(".m3u8"))) {
+                && !url.startsWith("rtsp"))) {
             mCacheFile = true;
         }
         try {
@@ -119,7 +132,9 @@ public class ProxyCacheManager implements ICacheManager, CacheListener {
                 String tmpPath = cachePath.getAbsolutePath() + File.separator + name + ".download";
                 String path = cachePath.getAbsolutePath() + File.separator + name;
                 CommonUtil.deleteFile(tmpPath);
+                CommonUtil.deleteFile(tmpPath + ".ranges");
                 CommonUtil.deleteFile(path);
+                CommonUtil.deleteFile(path + ".playlist");
             } else {
                 String pathTmp = StorageUtils.getIndividualCacheDirectory
                     (context.getApplicationContext()).getAbsolutePath()
@@ -128,7 +143,9 @@ public class ProxyCacheManager implements ICacheManager, CacheListener {
                     (context.getApplicationContext()).getAbsolutePath()
                     + File.separator + name;
                 CommonUtil.deleteFile(pathTmp);
+                CommonUtil.deleteFile(pathTmp + ".ranges");
                 CommonUtil.deleteFile(path);
+                CommonUtil.deleteFile(path + ".playlist");
             }
         }
     }
@@ -146,10 +163,10 @@ public class ProxyCacheManager implements ICacheManager, CacheListener {
 
     @Override
     public boolean cachePreview(Context context, File cacheDir, String url) {
-        HttpProxyCacheServer proxy = getProxy(context.getApplicationContext(), cacheDir);
+        HttpProxyCacheServer proxy = isProxyStarting() ? null : getProxy(context.getApplicationContext(), cacheDir);
         if (proxy != null) {
             //此处转换了url，然后再赋值给mUrl。
-            url = proxy.getProxyUrl(url);
+            url = proxy.getProxyUrl(url, getCachePartition(cacheDir));
         }
         return (!url.startsWith("http"));
     }
@@ -189,6 +206,90 @@ public class ProxyCacheManager implements ICacheManager, CacheListener {
         return builder.build();
     }
 
+    /**
+     * 在后台线程预先启动缓存代理服务（绑定端口、打开数据库等），建议在Application启动时调用，
+     * 避免首次播放时在播放线程中同步启动代理。
+     * 启动完成前doCacheLogic会直接使用原始url播放，启动完成后的播放才走代理缓存。
+     *
+     * @param cacheDir 缓存目录，为空时使用默认目录，需与播放时传入的目录一致
+     * @return 启动任务，可通过get()等待代理启动完成
+     */
+    public synchronized Future<HttpProxyCacheServer> prewarm(Context context, final File cacheDir) {
+        if (proxyStartTask != null) {
+            return proxyStartTask;
+        }
+        final Context appContext = context.getApplicationContext();
+        proxyStartTask = new FutureTask<>(new Callable<HttpProxyCacheServer>() {
+            @Override
+            public HttpProxyCacheServer call() {
+                return getProxy(appContext, cacheDir);
+            }
+        });
+        ProxyExecutor.getDefault().submit(proxyStartTask, ProxyExecutor.PRIORITY_PLAYBACK);
+        return proxyStartTask;
+    }
+
+    /**
+     * 代理是否正在后台启动中
+     */
+    public synchronized boolean isProxyStarting() {
+        return proxyStartTask != null && !proxyStartTask.isDone();
+    }
+
+    /**
+     * 后台预缓存url的前bytes字节，如信息流中下几个即将播放的视频，滑到时可直接从缓存起播。
+     * priority越大越先开始，再次调用可修改优先级；代理还在启动中时忽略。
+     *
+     * @param cacheDir 缓存目录，为空时使用默认目录，需与播放时传入的目录一致
+     */
+    public void prefetch(Context context, File cacheDir, String url, long bytes, int priority) {
+        if (isProxyStarting()) {
+            return;
+        }
+        HttpProxyCacheServer proxy = getProxy(context.getApplicationContext(), cacheDir);
+        if (proxy != null) {
+            proxy.prefetch(url, getCachePartition(cacheDir), bytes, priority);
+        }
+    }
+
+    /**
+     * 取消预缓存，如item已滑出屏幕，已缓存的数据会保留
+     */
+    public void cancelPrefetch(String url) {
+        cancelPrefetch(null, url);
+    }
+
+    /**
+     * 取消指定缓存目录下的预缓存
+     *
+     * @param cacheDir 缓存目录，为空时使用默认目录，需与prefetch时传入的目录一致
+     */
+    public void cancelPrefetch(File cacheDir, String url) {
+        HttpProxyCacheServer proxy = this.proxy;
+        String partition = getCachePartition(cacheDir);
+        if (proxy != null && (partition == null || proxy.hasPartition(partition))) {
+            proxy.cancelPrefetch(url, partition);
+        }
+    }
+
+    /**
+     * 获取缓存统计，如命中率、从缓存/网络读取的字节数、首字节耗时、淘汰文件数等
+     *
+     * @return 代理服务未创建时返回null
+     */
+    public CacheStats getCacheStats() {
+        return proxy != null ? proxy.getCacheStats() : null;
+    }
+
+    /**
+     * 重置缓存统计
+     */
+    public void resetCacheStats() {
+        if (proxy != null) {
+            proxy.resetCacheStats();
+        }
+    }
+
     public void setProxy(HttpProxyCacheServer proxy) {
         this.proxy = proxy;
     }
@@ -207,15 +308,38 @@ public class ProxyCacheManager implements ICacheManager, CacheListener {
         }
         builder.hostnameVerifier(v);
         builder.trustAllCerts(trustAllCerts);
+        mCacheDir = StorageUtils.getIndividualCacheDirectory(context.getApplicationContext());
         return builder.build();
 
     }
 
+    /**
+     * 创建缓存分区的淘汰策略，与代理服务默认目录的策略一致
+     */
+    protected DiskUsage newDiskUsage() {
+        if (DEFAULT_MAX_COUNT > 0) {
+            return new TotalCountLruDiskUsage(DEFAULT_MAX_COUNT);
+        }
+        return new TotalSizeLruDiskUsage(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * 获取缓存目录对应的代理缓存分区，分区以目录绝对路径命名
+     *
+     * @return 目录为空或是代理服务的默认目录时返回null
+     */
+    protected String getCachePartition(File cacheDir) {
+        if (cacheDir == null || (mCacheDir != null && mCacheDir.getAbsolutePath().equals(cacheDir.getAbsolutePath()))) {
+            return null;
+        }
+        return cacheDir.getAbsolutePath();
+    }
+
 
     /**
      * 获取缓存代理服务
      */
-    protected static HttpProxyCacheServer getProxy(Context context) {
+    protected static synchronized HttpProxyCacheServer getProxy(Context context) {
         HttpProxyCacheServer proxy = ProxyCacheManager.instance().proxy;
         return proxy == null ? (ProxyCacheManager.instance().proxy =
                 ProxyCacheManager.instance().newProxy(context)) : proxy;
@@ -224,33 +348,31 @@ public class ProxyCacheManager implements ICacheManager, CacheListener {
 
     /**
      * 获取缓存代理服务,带文件目录的
+     * 不同的缓存目录作为同一个代理服务的不同分区，切换目录不会重启代理，正在播放的连接不受影响
      */
-    public static HttpProxyCacheServer getProxy(Context context, File file) {
+    public static synchronized HttpProxyCacheServer getProxy(Context context, File file) {
 
         //如果为空，返回默认的
         if (file == null) {
             return getProxy(context);
         }
 
-        //如果已经有缓存文件路径，那么判断缓存文件路径是否一致
-        if (ProxyCacheManager.instance().mCacheDir != null
-                && !ProxyCacheManager.instance().mCacheDir.getAbsolutePath().equals(file.getAbsolutePath())) {
-            //不一致先关了旧的
-            HttpProxyCacheServer proxy = ProxyCacheManager.instance().proxy;
+        ProxyCacheManager manager = ProxyCacheManager.instance();
+        HttpProxyCacheServer proxy = manager.proxy;
+        //还没有代理服务的，以此目录为默认目录开启
+        if (proxy == null) {
+            return (manager.proxy = manager.newProxy(context, file));
+        }
 
-            if (proxy != null) {
-                proxy.shutdown();
+        //目录与默认目录不一致的，添加为分区
+        String partition = manager.getCachePartition(file);
+        if (partition != null && !proxy.hasPartition(partition)) {
+            if (!file.exists()) {
+                file.mkdirs();
             }
-            //开启新的
-            return (ProxyCacheManager.instance().proxy =
-                    ProxyCacheManager.instance().newProxy(context, file));
-        } else {
-            //还没有缓存文件的或者一致的，返回原来
-            HttpProxyCacheServer proxy = ProxyCacheManager.instance().proxy;
-
-            return proxy == null ? (ProxyCacheManager.instance().proxy =
-                    ProxyCacheManager.instance().newProxy(context, file)) : proxy;
+            proxy.addPartition(partition, file, manager.newDiskUsage());
         }
+        return proxy;
     }
 
     public static void setFileNameGenerator(FileNameGenerator fileNameGenerator) {
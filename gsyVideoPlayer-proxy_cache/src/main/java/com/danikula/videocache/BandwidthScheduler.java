@@ -0,0 +1,237 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares bandwidth between readers of played urls and background readers (e.g. prefetches), so background downloads
+ * don't make visible video rebuffer.
+ * <p>
+ * Readers of played urls are never throttled. While any url is played, background readers take data from token bucket
+ * refilled with the rest of bandwidth left after playback's share. If data cached ahead of any player is less than
+ * it consumes in {@code bufferMillis}, background readers get only minimal rate until buffer is filled. Player's
+ * consumption is known only after it has been served for a while, fully cached urls never need buffer.
+ * Bandwidth is estimated from downloaded data unless it is known.
+ */
+public final class BandwidthScheduler {
+
+    // background readers always get some data, so their connections aren't dropped by server as idle
+    private static final long MIN_BACKGROUND_RATE = 16 * 1024;
+    private static final long MIN_BANDWIDTH = 128 * 1024;
+    private static final long MIN_PLAYBACK_BUFFER = 512 * 1024;
+    // player fills its own buffer at start, its average rate is far above bitrate of video before that
+    private static final long MIN_PLAYBACK_MILLIS = 2000;
+    private static final long MIN_BURST = 8 * 1024;
+    private static final long MAX_BURST_MILLIS = 100;
+    private static final long ESTIMATE_WINDOW_MILLIS = 1000;
+    // estimate is lowered slowly, throttled background readers don't mean bandwidth is lost
+    private static final float ESTIMATE_DECAY = 0.9f;
+
+    private final long linkBandwidth;
+    private final float playbackShare;
+    private final long bufferMillis;
+    private final List<Playback> playbacks = new ArrayList<>();
+    private final AtomicLong throttledMillis = new AtomicLong();
+    private long estimatedBandwidth;
+    private long windowStart = System.currentTimeMillis();
+    private long windowBytes;
+    private double tokens;
+    private long tokensTime = System.currentTimeMillis();
+
+    /**
+     * @param linkBandwidth bandwidth of network in bytes per second or {@code 0} to estimate it from downloaded data.
+     * @param playbackShare share of bandwidth reserved for played urls, from {@code 0} (no throttling) to {@code 1}.
+     * @param bufferMillis  duration of playback to be cached ahead of player before background readers get their share.
+     */
+    public BandwidthScheduler(long linkBandwidth, float playbackShare, long bufferMillis) {
+        checkArgument(linkBandwidth >= 0, "Bandwidth can't be negative");
+        checkArgument(playbackShare >= 0 && playbackShare < 1, "Playback share must be in [0, 1)");
+        checkArgument(bufferMillis >= 0, "Buffer duration can't be negative");
+        this.linkBandwidth = linkBandwidth;
+        this.playbackShare = playbackShare;
+        this.bufferMillis = bufferMillis;
+    }
+
+    /**
+     * Creates scheduler that never throttles readers.
+     *
+     * @return scheduler without playback share.
+     */
+    public static BandwidthScheduler unlimited() {
+        return new BandwidthScheduler(0, 0, 0);
+    }
+
+    /**
+     * Records downloaded data and blocks background reader until it may download more.
+     *
+     * @param bytes      count of downloaded bytes.
+     * @param background {@code true} if data is downloaded for url nobody plays.
+     * @throws InterruptedProxyCacheException if waiting is interrupted.
+     */
+    void onDownloaded(int bytes, boolean background) throws InterruptedProxyCacheException {
+        long waitMillis;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            updateEstimate(now, bytes);
+            long rate = background ? getBackgroundRate(now) : -1;
+            if (rate < 0) {
+                return;
+            }
+            refill(now, rate);
+            tokens -= bytes;
+            waitMillis = tokens < 0 ? (long) Math.ceil(-tokens * 1000 / rate) : 0;
+        }
+        if (waitMillis > 0) {
+            throttledMillis.addAndGet(waitMillis);
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedProxyCacheException("Throttled reader is interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Registers client playing url, its buffer defines rate of background readers.
+     *
+     * @return playback to report served data to.
+     */
+    synchronized Playback startPlayback() {
+        Playback playback = new Playback();
+        playbacks.add(playback);
+        return playback;
+    }
+
+    private synchronized void finishPlayback(Playback playback) {
+        playbacks.remove(playback);
+    }
+
+    private void updateEstimate(long now, int bytes) {
+        windowBytes += bytes;
+        long elapsed = now - windowStart;
+        if (elapsed >= ESTIMATE_WINDOW_MILLIS) {
+            long rate = windowBytes * 1000 / elapsed;
+            estimatedBandwidth = Math.max(rate, (long) (estimatedBandwidth * ESTIMATE_DECAY));
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+
+    private void refill(long now, long rate) {
+        long burst = Math.max(MIN_BURST, rate * MAX_BURST_MILLIS / 1000);
+        tokens = Math.min(burst, tokens + (double) (now - tokensTime) * rate / 1000);
+        tokensTime = now;
+    }
+
+    private long getBackgroundRate(long now) {
+        if (playbackShare <= 0 || playbacks.isEmpty()) {
+            return -1;
+        }
+        if (isPlaybackBufferLow(now)) {
+            return MIN_BACKGROUND_RATE;
+        }
+        return Math.max(MIN_BACKGROUND_RATE, (long) (getBandwidth() * (1 - playbackShare)));
+    }
+
+    private boolean isPlaybackBufferLow(long now) {
+        for (Playback playback : playbacks) {
+            if (playback.isBufferLow(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return known bandwidth or estimated one in bytes per second.
+     */
+    public synchronized long getBandwidth() {
+        return linkBandwidth > 0 ? linkBandwidth : Math.max(estimatedBandwidth, MIN_BANDWIDTH);
+    }
+
+    /**
+     * @return current rate of background readers in bytes per second or {@code -1} if they aren't throttled.
+     */
+    public synchronized long getBackgroundRate() {
+        return getBackgroundRate(System.currentTimeMillis());
+    }
+
+    /**
+     * @return count of clients playing urls right now.
+     */
+    public synchronized int getActivePlaybacks() {
+        return playbacks.size();
+    }
+
+    /**
+     * @return total time background readers waited for bandwidth in milliseconds.
+     */
+    public long getThrottledMillis() {
+        return throttledMillis.get();
+    }
+
+    public float getPlaybackShare() {
+        return playbackShare;
+    }
+
+    public long getBufferMillis() {
+        return bufferMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BandwidthScheduler{" +
+            "bandwidth=" + getBandwidth() +
+            ", backgroundRate=" + getBackgroundRate() +
+            ", activePlaybacks=" + playbacks.size() +
+            ", throttledMillis=" + throttledMillis.get() +
+            '}';
+    }
+
+    /**
+     * Single client playing url, used by single thread serving request.
+     */
+    final class Playback {
+
+        private volatile long firstServedMillis = -1;
+        private volatile long servedBytes;
+        private volatile long bufferedBytes;
+
+        private Playback() {
+        }
+
+        /**
+         * @param bytes         count of bytes served to client.
+         * @param bufferedBytes count of bytes cached ahead of client, {@link Long#MAX_VALUE} if the rest is cached.
+         */
+        void onServed(long bytes, long bufferedBytes) {
+            if (firstServedMillis < 0) {
+                firstServedMillis = System.currentTimeMillis();
+            }
+            this.servedBytes += bytes;
+            this.bufferedBytes = bufferedBytes;
+        }
+
+        /**
+         * Checks if client has less data cached ahead than it consumes in {@link #bufferMillis} at its average rate
+         * (that is bitrate of video once player's own buffer is full). Client served less than
+         * {@link #MIN_PLAYBACK_MILLIS} and client of fully cached url are never considered low.
+         */
+        private boolean isBufferLow(long now) {
+            long startMillis = firstServedMillis;
+            long elapsed = now - startMillis;
+            if (startMillis < 0 || elapsed < MIN_PLAYBACK_MILLIS || bufferedBytes == Long.MAX_VALUE) {
+                return false;
+            }
+            return bufferedBytes < Math.max(MIN_PLAYBACK_BUFFER, servedBytes * bufferMillis / elapsed);
+        }
+
+        void finish() {
+            finishPlayback(this);
+        }
+    }
+}
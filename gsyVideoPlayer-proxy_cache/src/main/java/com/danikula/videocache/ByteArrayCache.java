@@ -1,6 +1,5 @@
 package com.danikula.videocache;
 
-import java.io.ByteArrayInputStream;
 import java.util.Arrays;
 
 /**
@@ -8,8 +7,9 @@ import java.util.Arrays;
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
-public class ByteArrayCache implements Cache {
+public class ByteArrayCache implements SparseCache {
 
+    private final ByteRanges ranges = new ByteRanges();
     private volatile byte[] data;
     private volatile boolean completed;
 
@@ -19,32 +19,50 @@ public class ByteArrayCache implements Cache {
 
     public ByteArrayCache(byte[] data) {
         this.data = Preconditions.checkNotNull(data);
+        this.ranges.add(0, data.length);
     }
 
     @Override
-    public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
-        if (offset >= data.length) {
-            return -1;
-        }
+    public synchronized int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
         if (offset > Integer.MAX_VALUE) {
             throw new IllegalArgumentException("Too long offset for memory cache " + offset);
         }
-        return new ByteArrayInputStream(data).read(buffer, (int) offset, length);
+        int count = (int) Math.min(length, ranges.availableFrom(offset));
+        if (count <= 0) {
+            return -1;
+        }
+        System.arraycopy(data, (int) offset, buffer, 0, count);
+        return count;
+    }
+
+    @Override
+    public synchronized long available() throws ProxyCacheException {
+        return ranges.availableFrom(0);
+    }
+
+    @Override
+    public synchronized long available(long offset) throws ProxyCacheException {
+        return ranges.availableFrom(offset);
     }
 
     @Override
-    public long available() throws ProxyCacheException {
-        return data.length;
+    public synchronized void append(byte[] newData, int length) throws ProxyCacheException {
+        write(newData, available(), length);
     }
 
     @Override
-    public void append(byte[] newData, int length) throws ProxyCacheException {
-        Preconditions.checkNotNull(data);
+    public synchronized void write(byte[] newData, long offset, int length) throws ProxyCacheException {
+        Preconditions.checkNotNull(newData);
         Preconditions.checkArgument(length >= 0 && length <= newData.length);
+        if (offset + length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too long offset for memory cache " + offset);
+        }
 
-        byte[] appendedData = Arrays.copyOf(data, data.length + length);
-        System.arraycopy(newData, 0, appendedData, data.length, length);
-        data = appendedData;
+        int end = (int) offset + length;
+        byte[] writtenData = end > data.length ? Arrays.copyOf(data, end) : data;
+        System.arraycopy(newData, 0, writtenData, (int) offset, length);
+        data = writtenData;
+        ranges.add(offset, end);
     }
 
     @Override
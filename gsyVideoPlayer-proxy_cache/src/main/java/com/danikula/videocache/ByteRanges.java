@@ -0,0 +1,125 @@
+package com.danikula.videocache;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of non-overlapping byte ranges {@code [start, end)} used by {@link Cache} implementations
+ * to track which parts of source are already cached.
+ * <p>
+ * Adjacent and overlapping ranges are merged, so each cached region is always described by single range.
+ * Class is not thread safe, owner should synchronize access.
+ */
+public final class ByteRanges {
+
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    /**
+     * Marks range {@code [start, end)} as available.
+     *
+     * @param start first byte of range (inclusive).
+     * @param end   last byte of range (exclusive).
+     */
+    public void add(long start, long end) {
+        Preconditions.checkArgument(start >= 0 && start <= end, "Invalid range [" + start + ", " + end + ")");
+        if (start == end) {
+            return;
+        }
+        Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    /**
+     * Returns count of bytes available continuously starting from passed offset.
+     *
+     * @param offset an offset to check.
+     * @return count of available bytes or {@code 0} if byte with passed offset is not available.
+     */
+    public long availableFrom(long offset) {
+        Map.Entry<Long, Long> floor = ranges.floorEntry(offset);
+        return floor != null && floor.getValue() > offset ? floor.getValue() - offset : 0;
+    }
+
+    /**
+     * Returns offset of first range that starts after passed offset.
+     *
+     * @param offset an offset to search from.
+     * @return start of next range or {@code -1} if there is no ranges after offset.
+     */
+    public long nextRangeStart(long offset) {
+        Long next = ranges.higherKey(offset);
+        return next == null ? -1 : next;
+    }
+
+    /**
+     * @return total count of available bytes in all ranges.
+     */
+    public long totalBytes() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+        return total;
+    }
+
+    /**
+     * @return count of ranges, {@code 0} for empty set.
+     */
+    public int size() {
+        return ranges.size();
+    }
+
+    public void clear() {
+        ranges.clear();
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(ranges.size());
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            out.writeLong(range.getKey());
+            out.writeLong(range.getValue());
+        }
+    }
+
+    public static ByteRanges readFrom(DataInput in) throws IOException {
+        ByteRanges result = new ByteRanges();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid ranges count " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            long start = in.readLong();
+            long end = in.readLong();
+            if (start < 0 || end < start) {
+                throw new IOException("Invalid range [" + start + ", " + end + ")");
+            }
+            result.add(start, end);
+        }
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ByteRanges{");
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            sb.append('[').append(range.getKey()).append(", ").append(range.getValue()).append(')');
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -7,8 +7,19 @@ package com.danikula.videocache;
  */
 public interface Cache {
 
+    /**
+     * Returns count of bytes cached continuously from the beginning of source.
+     *
+     * @return length of cached prefix.
+     * @throws ProxyCacheException if error occur while accessing cache.
+     */
     long available() throws ProxyCacheException;
 
+    /**
+     * Reads cached data. Never reads bytes that are not cached.
+     *
+     * @return count of read bytes or {@code -1} if byte with passed offset is not cached.
+     */
     int read(byte[] buffer, long offset, int length) throws ProxyCacheException;
 
     void append(byte[] data, int length) throws ProxyCacheException;
@@ -0,0 +1,197 @@
+package com.danikula.videocache;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of {@link HttpProxyCacheServer}'s cache statistics since server start or last reset.
+ *
+ * @see HttpProxyCacheServer#getCacheStats()
+ * @see HttpProxyCacheServer#resetCacheStats()
+ */
+public final class CacheStats {
+
+    private final long requests;
+    private final long cacheHitRequests;
+    private final long bytesServed;
+    private final long bytesServedFromCache;
+    private final long bytesDownloaded;
+    private final long seekFillBytes;
+    private final long diskReadBytes;
+    private final long diskWrittenBytes;
+    private final long memoryReadBytes;
+    private final long evictedFiles;
+    private final long evictedBytes;
+    private final long ttfbCount;
+    private final long totalTtfbMs;
+    private final long maxTtfbMs;
+    private final long tlsHandshakes;
+    private final long tlsResumedHandshakes;
+    private final long totalTlsHandshakeMs;
+    private final long maxTlsHandshakeMs;
+
+    CacheStats(long requests, long cacheHitRequests, long bytesServed, long bytesServedFromCache, long bytesDownloaded,
+               long seekFillBytes, long diskReadBytes, long diskWrittenBytes, long memoryReadBytes, long evictedFiles, long evictedBytes,
+               long ttfbCount, long totalTtfbMs, long maxTtfbMs, long tlsHandshakes, long tlsResumedHandshakes,
+               long totalTlsHandshakeMs, long maxTlsHandshakeMs) {
+        this.requests = requests;
+        this.cacheHitRequests = cacheHitRequests;
+        this.bytesServed = bytesServed;
+        this.bytesServedFromCache = bytesServedFromCache;
+        this.bytesDownloaded = bytesDownloaded;
+        this.seekFillBytes = seekFillBytes;
+        this.diskReadBytes = diskReadBytes;
+        this.diskWrittenBytes = diskWrittenBytes;
+        this.memoryReadBytes = memoryReadBytes;
+        this.evictedFiles = evictedFiles;
+        this.evictedBytes = evictedBytes;
+        this.ttfbCount = ttfbCount;
+        this.totalTtfbMs = totalTtfbMs;
+        this.maxTtfbMs = maxTtfbMs;
+        this.tlsHandshakes = tlsHandshakes;
+        this.tlsResumedHandshakes = tlsResumedHandshakes;
+        this.totalTlsHandshakeMs = totalTlsHandshakeMs;
+        this.maxTlsHandshakeMs = maxTlsHandshakeMs;
+    }
+
+    /**
+     * @return count of served data requests, HEAD requests are not counted.
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return count of requests that served data and whose all served data was cached before request was received.
+     */
+    public long getCacheHitRequests() {
+        return cacheHitRequests;
+    }
+
+    /**
+     * @return bytes sent to clients.
+     */
+    public long getBytesServed() {
+        return bytesServed;
+    }
+
+    /**
+     * @return bytes sent to clients that were cached before request was received.
+     */
+    public long getBytesServedFromCache() {
+        return bytesServedFromCache;
+    }
+
+    /**
+     * @return bytes sent to clients that were downloaded while serving request.
+     */
+    public long getBytesServedFromNetwork() {
+        return bytesServed - bytesServedFromCache;
+    }
+
+    /**
+     * @return bytes downloaded from sources, including data downloaded ahead of clients.
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    /**
+     * Returns bytes downloaded for seeks beyond downloaded data. Such data is cached as separate range of file
+     * (there is no uncached response path anymore, so nothing is discarded).
+     *
+     * @return bytes downloaded not contiguously with the beginning of source.
+     */
+    public long getSeekFillBytes() {
+        return seekFillBytes;
+    }
+
+    public long getDiskReadBytes() {
+        return diskReadBytes;
+    }
+
+    public long getDiskWrittenBytes() {
+        return diskWrittenBytes;
+    }
+
+    /**
+     * @return bytes read from memory cache instead of disk.
+     */
+    public long getMemoryReadBytes() {
+        return memoryReadBytes;
+    }
+
+    /**
+     * @return count of files deleted to keep cache within limits, {@code 0} if disk usage isn't LRU based.
+     */
+    public long getEvictedFiles() {
+        return evictedFiles;
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    /**
+     * @return share of requests served from cache only, {@code 0} if there were no requests.
+     */
+    public float getHitRatio() {
+        return requests == 0 ? 0 : (float) cacheHitRequests / requests;
+    }
+
+    /**
+     * @return share of bytes served from cache, {@code 0} if nothing was served.
+     */
+    public float getByteHitRatio() {
+        return bytesServed == 0 ? 0 : (float) bytesServedFromCache / bytesServed;
+    }
+
+    /**
+     * @return average time between receiving request and sending first byte of data, in milliseconds.
+     */
+    public long getAverageTtfbMs() {
+        return ttfbCount == 0 ? 0 : totalTtfbMs / ttfbCount;
+    }
+
+    public long getMaxTtfbMs() {
+        return maxTtfbMs;
+    }
+
+    /**
+     * @return count of TLS handshakes with sources' servers, including resumed ones.
+     */
+    public long getTlsHandshakes() {
+        return tlsHandshakes;
+    }
+
+    /**
+     * @return count of TLS handshakes that resumed cached session instead of full handshake.
+     */
+    public long getTlsResumedHandshakes() {
+        return tlsResumedHandshakes;
+    }
+
+    /**
+     * @return average duration of TLS handshake in milliseconds.
+     */
+    public long getAverageTlsHandshakeMs() {
+        return tlsHandshakes == 0 ? 0 : totalTlsHandshakeMs / tlsHandshakes;
+    }
+
+    public long getMaxTlsHandshakeMs() {
+        return maxTlsHandshakeMs;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "CacheStats{requests=%d, hitRatio=%.2f, byteHitRatio=%.2f, served=%d, " +
+                "servedFromCache=%d, downloaded=%d, seekFill=%d, diskRead=%d, diskWritten=%d, memoryRead=%d, " +
+                "evictedFiles=%d, evictedBytes=%d, avgTtfbMs=%d, maxTtfbMs=%d, tlsHandshakes=%d, tlsResumed=%d, " +
+                "avgTlsHandshakeMs=%d, maxTlsHandshakeMs=%d}",
+            requests, getHitRatio(), getByteHitRatio(), bytesServed, bytesServedFromCache, bytesDownloaded,
+            seekFillBytes, diskReadBytes, diskWrittenBytes, memoryReadBytes, evictedFiles, evictedBytes,
+            getAverageTtfbMs(), maxTtfbMs, tlsHandshakes, tlsResumedHandshakes, getAverageTlsHandshakeMs(), maxTlsHandshakeMs);
+    }
+}
@@ -0,0 +1,185 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.DiskUsage;
+import com.danikula.videocache.file.LruDiskUsage;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects {@link CacheStats} with lock-free counters, it is safe to record stats from any thread.
+ * <p>
+ * Evictions are counted by {@link LruDiskUsage}s of all cache partitions themselves, recorder only remembers
+ * their count at last reset.
+ */
+public final class CacheStatsRecorder {
+
+    private final List<LruDiskUsage> lruDiskUsages = new CopyOnWriteArrayList<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong cacheHitRequests = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong bytesServedFromCache = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong seekFillBytes = new AtomicLong();
+    private final AtomicLong diskReadBytes = new AtomicLong();
+    private final AtomicLong diskWrittenBytes = new AtomicLong();
+    private final AtomicLong memoryReadBytes = new AtomicLong();
+    private final AtomicLong ttfbCount = new AtomicLong();
+    private final AtomicLong totalTtfbMs = new AtomicLong();
+    private final AtomicLong maxTtfbMs = new AtomicLong();
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+    private final AtomicLong tlsResumedHandshakes = new AtomicLong();
+    private final AtomicLong totalTlsHandshakeMs = new AtomicLong();
+    private final AtomicLong maxTlsHandshakeMs = new AtomicLong();
+    private volatile long evictedFilesAtReset;
+    private volatile long evictedBytesAtReset;
+
+    public CacheStatsRecorder() {
+        this(null);
+    }
+
+    CacheStatsRecorder(DiskUsage diskUsage) {
+        addDiskUsage(diskUsage);
+    }
+
+    /**
+     * Adds disk usage of cache partition to count its evictions too.
+     */
+    void addDiskUsage(DiskUsage diskUsage) {
+        if (diskUsage instanceof LruDiskUsage && !lruDiskUsages.contains(diskUsage)) {
+            lruDiskUsages.add((LruDiskUsage) diskUsage);
+        }
+    }
+
+    public void onDiskRead(long bytes) {
+        diskReadBytes.addAndGet(bytes);
+    }
+
+    public void onDiskWritten(long bytes) {
+        diskWrittenBytes.addAndGet(bytes);
+    }
+
+    public void onMemoryRead(long bytes) {
+        memoryReadBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @param seekFill {@code true} if data is not contiguous with the beginning of source.
+     */
+    void onSourceRead(long bytes, boolean seekFill) {
+        bytesDownloaded.addAndGet(bytes);
+        if (seekFill) {
+            seekFillBytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * @param resumed {@code true} if cached session is resumed instead of full handshake.
+     */
+    void onTlsHandshake(long durationMs, boolean resumed) {
+        tlsHandshakes.incrementAndGet();
+        if (resumed) {
+            tlsResumedHandshakes.incrementAndGet();
+        }
+        totalTlsHandshakeMs.addAndGet(durationMs);
+        updateMax(maxTlsHandshakeMs, durationMs);
+    }
+
+    /**
+     * Starts recording of single request.
+     *
+     * @param cachedBytes count of bytes of requested range cached before request is processed.
+     * @return record to report served data to.
+     */
+    RequestRecord startRequest(long cachedBytes) {
+        return new RequestRecord(cachedBytes);
+    }
+
+    CacheStats snapshot() {
+        long evictedFiles = getEvictedFilesCount() - evictedFilesAtReset;
+        long evictedBytes = getEvictedBytes() - evictedBytesAtReset;
+        return new CacheStats(requests.get(), cacheHitRequests.get(), bytesServed.get(), bytesServedFromCache.get(),
+            bytesDownloaded.get(), seekFillBytes.get(), diskReadBytes.get(), diskWrittenBytes.get(), memoryReadBytes.get(), evictedFiles,
+            evictedBytes, ttfbCount.get(), totalTtfbMs.get(), maxTtfbMs.get(), tlsHandshakes.get(), tlsResumedHandshakes.get(),
+            totalTlsHandshakeMs.get(), maxTlsHandshakeMs.get());
+    }
+
+    void reset() {
+        requests.set(0);
+        cacheHitRequests.set(0);
+        bytesServed.set(0);
+        bytesServedFromCache.set(0);
+        bytesDownloaded.set(0);
+        seekFillBytes.set(0);
+        diskReadBytes.set(0);
+        diskWrittenBytes.set(0);
+        memoryReadBytes.set(0);
+        ttfbCount.set(0);
+        totalTtfbMs.set(0);
+        maxTtfbMs.set(0);
+        tlsHandshakes.set(0);
+        tlsResumedHandshakes.set(0);
+        totalTlsHandshakeMs.set(0);
+        maxTlsHandshakeMs.set(0);
+        evictedFilesAtReset = getEvictedFilesCount();
+        evictedBytesAtReset = getEvictedBytes();
+    }
+
+    private long getEvictedFilesCount() {
+        long count = 0;
+        for (LruDiskUsage lruDiskUsage : lruDiskUsages) {
+            count += lruDiskUsage.getEvictedFilesCount();
+        }
+        return count;
+    }
+
+    private long getEvictedBytes() {
+        long bytes = 0;
+        for (LruDiskUsage lruDiskUsage : lruDiskUsages) {
+            bytes += lruDiskUsage.getEvictedBytes();
+        }
+        return bytes;
+    }
+
+    private void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry, max is updated by another thread
+        }
+    }
+
+    /**
+     * Stats of single request, used by single thread processing request.
+     */
+    final class RequestRecord {
+
+        private final long startNanos = System.nanoTime();
+        private final long cachedBytes;
+        private long servedBytes;
+
+        private RequestRecord(long cachedBytes) {
+            this.cachedBytes = cachedBytes;
+        }
+
+        void onServed(long bytes) {
+            if (servedBytes == 0 && bytes > 0) {
+                long ttfbMs = (System.nanoTime() - startNanos) / 1000000;
+                ttfbCount.incrementAndGet();
+                totalTtfbMs.addAndGet(ttfbMs);
+                updateMax(maxTtfbMs, ttfbMs);
+            }
+            servedBytes += bytes;
+        }
+
+        void finish() {
+            long fromCache = Math.min(servedBytes, cachedBytes);
+            requests.incrementAndGet();
+            bytesServed.addAndGet(servedBytes);
+            bytesServedFromCache.addAndGet(fromCache);
+            if (servedBytes > 0 && fromCache == servedBytes) { // request that served nothing isn't a hit
+                cacheHitRequests.incrementAndGet();
+            }
+        }
+    }
+}
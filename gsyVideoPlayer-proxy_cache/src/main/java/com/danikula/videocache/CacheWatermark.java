@@ -0,0 +1,110 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watermark of data available in {@link SparseCache} clients can wait on.
+ * <p>
+ * Every waiter waits for particular range of cache and is woken up only when whole range is available
+ * (or when state of reading source is changed), instead of polling cache periodically.
+ * Usage pattern: {@link #register(long, long)} waiter, check cache, {@link Waiter#await(long)} if data is still absent,
+ * {@link #unregister(Waiter)} waiter. Registering before checking guarantees data written after check wakes waiter up.
+ */
+final class CacheWatermark {
+
+    private final SparseCache cache;
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    CacheWatermark(SparseCache cache) {
+        this.cache = checkNotNull(cache);
+    }
+
+    /**
+     * Returns offset of first not cached byte starting from passed offset, without blocking.
+     *
+     * @param offset an offset to check cache from.
+     * @return end (exclusive) of continuously cached data started at offset, equals to offset if byte isn't cached.
+     * @throws ProxyCacheException if error occur while accessing cache.
+     */
+    long availableUpTo(long offset) throws ProxyCacheException {
+        return offset + cache.available(offset);
+    }
+
+    synchronized Waiter register(long offset, long end) {
+        Waiter waiter = new Waiter(offset, end);
+        waiters.add(waiter);
+        return waiter;
+    }
+
+    synchronized void unregister(Waiter waiter) {
+        waiters.remove(waiter);
+    }
+
+    /**
+     * Wakes up waiters whose ranges became available. Should be called after new data is written to cache.
+     */
+    void onDataWritten() throws ProxyCacheException {
+        List<Waiter> ready = null;
+        synchronized (this) {
+            for (Waiter waiter : waiters) {
+                if (!waiter.signalled && availableUpTo(waiter.offset) >= waiter.end) {
+                    ready = ready == null ? new ArrayList<Waiter>() : ready;
+                    ready.add(waiter);
+                }
+            }
+        }
+        if (ready != null) {
+            for (Waiter waiter : ready) {
+                waiter.signal();
+            }
+        }
+    }
+
+    /**
+     * Wakes up all waiters, e.g. when source reading is finished or failed.
+     */
+    void signalAll() {
+        List<Waiter> all;
+        synchronized (this) {
+            all = new ArrayList<>(waiters);
+        }
+        for (Waiter waiter : all) {
+            waiter.signal();
+        }
+    }
+
+    static final class Waiter {
+
+        private final long offset;
+        private final long end;
+        private volatile boolean signalled;
+
+        private Waiter(long offset, long end) {
+            this.offset = offset;
+            this.end = end;
+        }
+
+        /**
+         * Waits until waiter is signalled or timeout is elapsed.
+         *
+         * @param timeoutMs max time to wait in milliseconds.
+         * @throws InterruptedException if current thread is interrupted while waiting.
+         */
+        synchronized void await(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            long remaining = timeoutMs;
+            while (!signalled && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+
+        private synchronized void signal() {
+            signalled = true;
+            notifyAll();
+        }
+    }
+}
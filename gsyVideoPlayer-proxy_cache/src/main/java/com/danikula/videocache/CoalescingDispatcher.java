@@ -0,0 +1,174 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivers frequent progress-like values (cache percents, buffering percents) to looper's thread, keeping only
+ * the latest value per target and delivering at most once per {@link #getInterval()}.
+ * <p>
+ * Unlike posting {@link Runnable} per event, posting value doesn't allocate: pending values are kept in reusable
+ * slots and single message is sent to looper for all targets. Values are delivered in the order targets got
+ * their first pending value.
+ * <p>
+ * Use it only for values where intermediate states may be skipped, discrete events must be posted as usual.
+ */
+public final class CoalescingDispatcher {
+
+    /**
+     * Default interval between deliveries, one frame of 60 fps display.
+     */
+    public static final long DEFAULT_INTERVAL_MS = 16;
+
+    private static final int MSG_DISPATCH = 1;
+    private static volatile CoalescingDispatcher mainDispatcher;
+
+    private final Handler handler;
+    private final long interval;
+    private final Map<Target, Slot> pending = new IdentityHashMap<>();
+    private final List<Slot> order = new ArrayList<>();
+    private final List<Slot> delivering = new ArrayList<>();
+    private final ArrayDeque<Slot> freeSlots = new ArrayDeque<>();
+    private boolean scheduled;
+    private long lastDispatchTime;
+
+    /**
+     * @param looper   a looper values are delivered on.
+     * @param interval min interval between deliveries in milliseconds.
+     */
+    public CoalescingDispatcher(Looper looper, long interval) {
+        Preconditions.checkArgument(interval >= 0, "Interval can't be negative");
+        this.handler = new DispatchHandler(checkNotNull(looper), this);
+        this.interval = interval;
+    }
+
+    /**
+     * Returns dispatcher shared by all components delivering values to main thread with default interval.
+     *
+     * @return main thread's dispatcher.
+     */
+    public static CoalescingDispatcher getMain() {
+        if (mainDispatcher == null) {
+            synchronized (CoalescingDispatcher.class) {
+                if (mainDispatcher == null) {
+                    mainDispatcher = new CoalescingDispatcher(Looper.getMainLooper(), DEFAULT_INTERVAL_MS);
+                }
+            }
+        }
+        return mainDispatcher;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Schedules delivery of value to target, replacing value that is not delivered yet.
+     *
+     * @param target  a target to deliver value to.
+     * @param value   a value.
+     * @param payload an object to be delivered together with value, may be {@code null}.
+     */
+    public void post(Target target, int value, Object payload) {
+        checkNotNull(target);
+        synchronized (pending) {
+            Slot slot = pending.get(target);
+            if (slot == null) {
+                slot = freeSlots.isEmpty() ? new Slot() : freeSlots.poll();
+                slot.target = target;
+                pending.put(target, slot);
+                order.add(slot);
+            }
+            slot.value = value;
+            slot.payload = payload;
+            if (!scheduled) {
+                scheduled = true;
+                long time = Math.max(SystemClock.uptimeMillis(), lastDispatchTime + interval);
+                handler.sendEmptyMessageAtTime(MSG_DISPATCH, time);
+            }
+        }
+    }
+
+    /**
+     * Drops value pending for target, if any.
+     *
+     * @param target a target that shouldn't get pending value.
+     */
+    public void cancel(Target target) {
+        synchronized (pending) {
+            Slot slot = pending.remove(target);
+            if (slot != null) {
+                order.remove(slot);
+                recycle(slot);
+            }
+        }
+    }
+
+    private void dispatch() {
+        synchronized (pending) {
+            scheduled = false;
+            lastDispatchTime = SystemClock.uptimeMillis();
+            delivering.addAll(order);
+            order.clear();
+            pending.clear();
+        }
+        try {
+            for (Slot slot : delivering) {
+                slot.target.onDispatch(slot.value, slot.payload);
+            }
+        } finally {
+            synchronized (pending) {
+                for (Slot slot : delivering) {
+                    recycle(slot);
+                }
+            }
+            delivering.clear();
+        }
+    }
+
+    private void recycle(Slot slot) {
+        slot.target = null;
+        slot.payload = null;
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Receiver of dispatched values, called on dispatcher's looper thread.
+     */
+    public interface Target {
+
+        void onDispatch(int value, Object payload);
+    }
+
+    private static final class Slot {
+
+        private Target target;
+        private int value;
+        private Object payload;
+    }
+
+    private static final class DispatchHandler extends Handler {
+
+        private final CoalescingDispatcher dispatcher;
+
+        DispatchHandler(Looper looper, CoalescingDispatcher dispatcher) {
+            super(looper);
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            dispatcher.dispatch();
+        }
+    }
+}
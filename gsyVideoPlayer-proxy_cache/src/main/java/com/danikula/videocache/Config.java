@@ -24,8 +24,24 @@ class Config {
     public final HeaderInjector headerInjector;
     public final HostnameVerifier v;
     public final TrustManager[] trustAllCerts;
+    public final RequestEngine requestEngine;
+    public final int parallelDownloads;
+    public final long hlsPlaylistTtl;
+    public final CacheStatsRecorder stats;
+    public final HeadMemoryCache headMemoryCache;
+    public final int writeBufferSize;
+    public final CoalescingDispatcher progressDispatcher;
+    public final ProxyExecutor executor;
+    public final long readerLinger;
+    public final TlsSocketFactory sslSocketFactory;
+    public final int maxPrefetches;
+    public final long maxPrefetchBytes;
+    public final long redirectTtl;
+    public final PartitionSelector partitionSelector;
+    public final BandwidthScheduler bandwidthScheduler;
+    public final String partition;
 
-    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector, HostnameVerifier v, TrustManager[] trustAllCerts) {
+    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector, HostnameVerifier v, TrustManager[] trustAllCerts, RequestEngine requestEngine, int parallelDownloads, long hlsPlaylistTtl, HeadMemoryCache headMemoryCache, int writeBufferSize, CoalescingDispatcher progressDispatcher, ProxyExecutor executor, long readerLinger, int maxPrefetches, long maxPrefetchBytes, long redirectTtl, PartitionSelector partitionSelector, BandwidthScheduler bandwidthScheduler) {
         this.cacheRoot = cacheRoot;
         this.fileNameGenerator = fileNameGenerator;
         this.diskUsage = diskUsage;
@@ -33,6 +49,73 @@ class Config {
         this.headerInjector = headerInjector;
         this.v = v;
         this.trustAllCerts = trustAllCerts;
+        this.requestEngine = requestEngine;
+        this.parallelDownloads = parallelDownloads;
+        this.hlsPlaylistTtl = hlsPlaylistTtl;
+        this.stats = new CacheStatsRecorder(diskUsage);
+        this.sslSocketFactory = TlsSocketFactory.newInstance(v != null ? trustAllCerts : null, stats);
+        this.headMemoryCache = headMemoryCache;
+        this.writeBufferSize = writeBufferSize;
+        this.progressDispatcher = progressDispatcher;
+        this.executor = executor;
+        this.readerLinger = readerLinger;
+        this.maxPrefetches = maxPrefetches;
+        this.maxPrefetchBytes = maxPrefetchBytes;
+        this.redirectTtl = redirectTtl;
+        this.partitionSelector = partitionSelector;
+        this.bandwidthScheduler = bandwidthScheduler;
+        this.partition = null;
+    }
+
+    /**
+     * Creates config of named cache partition, it differs from {@code config} only by cache directory and disk usage,
+     * everything else (stats, executor, sockets factory, bandwidth, etc) is shared.
+     */
+    private Config(Config config, String partition, File cacheRoot, DiskUsage diskUsage) {
+        this.cacheRoot = cacheRoot;
+        this.fileNameGenerator = config.fileNameGenerator;
+        this.diskUsage = diskUsage;
+        this.sourceInfoStorage = config.sourceInfoStorage;
+        this.headerInjector = config.headerInjector;
+        this.v = config.v;
+        this.trustAllCerts = config.trustAllCerts;
+        this.requestEngine = config.requestEngine;
+        this.parallelDownloads = config.parallelDownloads;
+        this.hlsPlaylistTtl = config.hlsPlaylistTtl;
+        this.stats = config.stats;
+        this.sslSocketFactory = config.sslSocketFactory;
+        this.headMemoryCache = config.headMemoryCache;
+        this.writeBufferSize = config.writeBufferSize;
+        this.progressDispatcher = config.progressDispatcher;
+        this.executor = config.executor;
+        this.readerLinger = config.readerLinger;
+        this.maxPrefetches = config.maxPrefetches;
+        this.maxPrefetchBytes = config.maxPrefetchBytes;
+        this.redirectTtl = config.redirectTtl;
+        this.partitionSelector = config.partitionSelector;
+        this.bandwidthScheduler = config.bandwidthScheduler;
+        this.partition = partition;
+        this.stats.addDiskUsage(diskUsage);
+    }
+
+    Config forPartition(String partition, File cacheRoot, DiskUsage diskUsage) {
+        return new Config(this, partition, cacheRoot, diskUsage);
+    }
+
+    /**
+     * Returns key of url's clients, the same url is cached separately in every partition.
+     */
+    String clientsKey(String url) {
+        return partition == null ? url : partition + '\n' + url;
+    }
+
+    /**
+     * Returns path of proxy url for url, partition's name is its first segment. Encoded url has no slashes,
+     * so urls of default partition are distinguished from partitioned ones.
+     */
+    String proxyPath(String url) {
+        String encodedUrl = ProxyCacheUtils.encode(url);
+        return partition == null ? encodedUrl : ProxyCacheUtils.encode(partition) + "/" + encodedUrl;
     }
 
     File generateCacheFile(String url) {
@@ -1,66 +1,217 @@
 package com.danikula.videocache;
 
-import static com.danikula.videocache.Preconditions.checkNotNull;
-
-import android.text.TextUtils;
-
 import androidx.annotation.NonNull;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
- * Model for Http GET request.
+ * Model for Http GET (or HEAD) request.
+ * <p>
+ * Request is parsed right from bytes received from socket without building intermediate strings,
+ * only uri is converted to string. Only single range {@code bytes=start-} or {@code bytes=start-end} is supported,
+ * other ranges (suffix or multiple ranges) are ignored and whole content is returned for such requests.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 class GetRequest {
 
-    private static final Pattern RANGE_HEADER_PATTERN = Pattern.compile("[R,r]ange:[ ]?bytes=(\\d*)-");
-    private static final Pattern URL_PATTERN = Pattern.compile("GET /(.*) HTTP");
+    static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+    private static final ThreadLocal<byte[]> READ_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_REQUEST_SIZE];
+        }
+    };
+    private static final byte[] GET = "GET".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEAD = "HEAD".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RANGE_HEADER = "range:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BYTES_UNIT = "bytes=".getBytes(StandardCharsets.US_ASCII);
 
     public final String uri;
     public final long rangeOffset;
+    /**
+     * End of requested range (exclusive) or {@code -1} if range is not bounded.
+     */
+    public final long rangeEnd;
     public final boolean partial;
+    public final boolean head;
 
-    public GetRequest(String request) {
-        checkNotNull(request);
-        long offset = findRangeOffset(request);
-        this.rangeOffset = Math.max(0, offset);
-        this.partial = offset >= 0;
-        this.uri = findUri(request);
+    private GetRequest(String uri, long rangeOffset, long rangeEnd, boolean partial, boolean head) {
+        this.uri = uri;
+        this.rangeOffset = rangeOffset;
+        this.rangeEnd = rangeEnd;
+        this.partial = partial;
+        this.head = head;
     }
 
     public static GetRequest read(InputStream inputStream) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-        StringBuilder stringRequest = new StringBuilder();
-        String line;
-        while (!TextUtils.isEmpty(line = reader.readLine())) { // until new line (headers ending)
-            stringRequest.append(line).append('\n');
+        byte[] buffer = READ_BUFFER.get();
+        int length = 0;
+        int requestEnd;
+        while ((requestEnd = findRequestEnd(buffer, length)) < 0) {
+            if (length == buffer.length) {
+                throw new IOException("Request is too long");
+            }
+            int read = inputStream.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                throw new IOException("Connection is closed before request is received");
+            }
+            length += read;
         }
-        return new GetRequest(stringRequest.toString());
+        return parse(buffer, requestEnd);
     }
 
-    private long findRangeOffset(String request) {
-        Matcher matcher = RANGE_HEADER_PATTERN.matcher(request);
-        if (matcher.find()) {
-            String rangeValue = matcher.group(1);
-            return Long.parseLong(rangeValue);
+    /**
+     * Finds end of request headers (empty line) in received data.
+     *
+     * @param data   received data.
+     * @param length length of received data.
+     * @return length of request including empty line or {@code -1} if request isn't received completely.
+     */
+    static int findRequestEnd(byte[] data, int length) {
+        for (int i = 1; i < length; i++) {
+            if (data[i] == '\n' && (data[i - 1] == '\n' || i >= 2 && data[i - 1] == '\r' && data[i - 2] == '\n')) {
+                return i + 1;
+            }
         }
         return -1;
     }
 
-    private String findUri(String request) {
-        Matcher matcher = URL_PATTERN.matcher(request);
-        if (matcher.find()) {
-            return matcher.group(1);
+    /**
+     * Parses request.
+     *
+     * @param data   request's bytes.
+     * @param length length of request.
+     * @return parsed request.
+     * @throws IllegalArgumentException if request is invalid or its method is neither GET nor HEAD.
+     */
+    static GetRequest parse(byte[] data, int length) {
+        int lineEnd = lineEnd(data, 0, length);
+        int methodEnd = indexOf(data, 0, lineEnd, ' ');
+        int versionStart = lastIndexOf(data, lineEnd, ' ');
+        if (methodEnd < 0 || versionStart <= methodEnd + 1 || data[methodEnd + 1] != '/') {
+            throw new IllegalArgumentException("Invalid request `" + new String(data, 0, lineEnd, StandardCharsets.UTF_8) + "`: url not found!");
+        }
+        boolean head = startsWith(data, 0, methodEnd, HEAD) && methodEnd == HEAD.length;
+        if (!head && !(startsWith(data, 0, methodEnd, GET) && methodEnd == GET.length)) {
+            throw new IllegalArgumentException("Unsupported request method `" + new String(data, 0, methodEnd, StandardCharsets.UTF_8) + "`");
+        }
+        String uri = new String(data, methodEnd + 2, versionStart - methodEnd - 2, StandardCharsets.UTF_8);
+
+        long rangeOffset = -1;
+        long rangeEnd = -1;
+        for (int lineStart = lineEnd + 1; lineStart < length; lineStart = lineEnd + 1) {
+            lineEnd = lineEnd(data, lineStart, length);
+            if (startsWithIgnoreCase(data, lineStart, lineEnd, RANGE_HEADER)) {
+                long[] range = parseRange(data, lineStart + RANGE_HEADER.length, lineEnd);
+                if (range != null) {
+                    rangeOffset = range[0];
+                    rangeEnd = range[1];
+                }
+            }
+        }
+        return new GetRequest(uri, Math.max(0, rangeOffset), rangeEnd, rangeOffset >= 0, head);
+    }
+
+    /**
+     * Parses value of Range header.
+     *
+     * @return start and end (exclusive, {@code -1} if not bounded) of range or {@code null} if range isn't supported.
+     */
+    private static long[] parseRange(byte[] data, int position, int end) {
+        position = skipSpaces(data, position, end);
+        if (!startsWithIgnoreCase(data, position, end, BYTES_UNIT)) {
+            return null;
+        }
+        position += BYTES_UNIT.length;
+        int startEnd = skipDigits(data, position, end);
+        if (startEnd == position || startEnd >= end || data[startEnd] != '-') {
+            return null; // suffix range or malformed value
+        }
+        long start = parseLong(data, position, startEnd);
+        position = startEnd + 1;
+        int lastEnd = skipDigits(data, position, end);
+        long last = lastEnd == position ? -1 : parseLong(data, position, lastEnd);
+        if (skipSpaces(data, lastEnd, end) != end || start < 0 || lastEnd != position && last < start) {
+            return null; // multiple ranges or invalid range
+        }
+        return new long[]{start, last == -1 ? -1 : last + 1};
+    }
+
+    private static long parseLong(byte[] data, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (value > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            value = value * 10 + (data[i] - '0');
+        }
+        return value;
+    }
+
+    private static int skipDigits(byte[] data, int position, int end) {
+        while (position < end && data[position] >= '0' && data[position] <= '9') {
+            position++;
+        }
+        return position;
+    }
+
+    private static int skipSpaces(byte[] data, int position, int end) {
+        while (position < end && (data[position] == ' ' || data[position] == '\t' || data[position] == '\r')) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int lineEnd(byte[] data, int start, int length) {
+        int end = indexOf(data, start, length, '\n');
+        return end < 0 ? length : end;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, char value) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, int end, char value) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] data, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] data, int start, int end, byte[] lowerCasePrefix) {
+        if (end - start < lowerCasePrefix.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCasePrefix.length; i++) {
+            byte b = data[start + i];
+            if ((b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b) != lowerCasePrefix[i]) {
+                return false;
+            }
         }
-        throw new IllegalArgumentException("Invalid request `" + request + "`: url not found!");
+        return true;
     }
 
     @NonNull
@@ -68,7 +219,9 @@ class GetRequest {
     public String toString() {
         return "GetRequest{" +
             "rangeOffset=" + rangeOffset +
+            ", rangeEnd=" + rangeEnd +
             ", partial=" + partial +
+            ", head=" + head +
             ", uri='" + uri + '\'' +
             '}';
     }
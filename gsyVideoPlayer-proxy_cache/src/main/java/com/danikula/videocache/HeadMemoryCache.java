@@ -0,0 +1,217 @@
+package com.danikula.videocache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Size-bounded LRU store of first bytes ("heads") of recently used sources, shared by all {@link HybridCache}s.
+ * <p>
+ * Heads are kept in direct byte buffers, so they don't take java heap and can be written to socket channel
+ * without copying. Every head takes {@link #getHeadSize()} bytes until its source is completed,
+ * least recently used heads are dropped when total size exceeds {@link #getMaxSize()}.
+ */
+public final class HeadMemoryCache {
+
+    private final long maxSize;
+    private final int headSize;
+    private final LinkedHashMap<String, Head> heads = new LinkedHashMap<>(16, .75f, true);
+    private long totalSize;
+
+    /**
+     * @param maxSize  max total size of heads in bytes, {@code 0} disables memory cache.
+     * @param headSize count of first bytes of every source kept in memory, {@code 0} disables memory cache.
+     */
+    public HeadMemoryCache(long maxSize, int headSize) {
+        Preconditions.checkArgument(maxSize >= 0 && headSize >= 0, "Memory cache sizes can't be negative");
+        this.maxSize = maxSize;
+        this.headSize = headSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public int getHeadSize() {
+        return headSize;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && headSize > 0 && headSize <= maxSize;
+    }
+
+    /**
+     * Returns head of source and marks it as most recently used, creates empty head if it is absent.
+     *
+     * @param key a key of source, e.g. path of its cache file.
+     * @return head or {@code null} if memory cache is disabled.
+     */
+    synchronized Head obtain(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Head head = heads.get(key);
+        if (head == null) {
+            head = new Head(key, ByteBuffer.allocateDirect(headSize));
+            heads.put(key, head);
+            totalSize += headSize;
+            trim();
+        }
+        return head;
+    }
+
+    /**
+     * Drops all heads, e.g. when cache files are deleted.
+     */
+    public synchronized void clear() {
+        heads.clear();
+        totalSize = 0;
+    }
+
+    /**
+     * @return total size of heads in bytes.
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    private synchronized void onShrunk(Head head, int oldCapacity, int newCapacity) {
+        if (heads.get(head.key) == head) { // don't touch access order, head is used right now anyway
+            totalSize -= oldCapacity - newCapacity;
+        }
+    }
+
+    private void trim() {
+        Iterator<Head> iterator = heads.values().iterator();
+        while (totalSize > maxSize && iterator.hasNext()) {
+            Head eldest = iterator.next();
+            totalSize -= eldest.capacity();
+            iterator.remove();
+            // buffer is released by gc when caches using it are closed
+        }
+    }
+
+    /**
+     * First bytes of single source. Bytes are only appended contiguously from the beginning,
+     * so once written byte never changes and can be read without lock.
+     */
+    final class Head {
+
+        private final String key;
+        private ByteBuffer buffer;
+        private int length;
+        private boolean completed;
+
+        private Head(String key, ByteBuffer buffer) {
+            this.key = key;
+            this.buffer = buffer;
+        }
+
+        synchronized int length() {
+            return length;
+        }
+
+        synchronized boolean isFull() {
+            return completed || length == buffer.capacity();
+        }
+
+        private synchronized int capacity() {
+            return buffer.capacity();
+        }
+
+        /**
+         * Appends data if it is contiguous with head, data far from head or beyond its capacity is ignored.
+         *
+         * @param data   source's data.
+         * @param offset an offset of data in source.
+         * @param count  count of bytes in data.
+         */
+        synchronized void write(byte[] data, long offset, int count) {
+            if (completed || offset > length || offset + count <= length) {
+                return;
+            }
+            int skip = (int) (length - offset);
+            int written = Math.min(count - skip, buffer.capacity() - length);
+            ByteBuffer target = buffer.duplicate();
+            target.position(length);
+            target.put(data, skip, written);
+            length += written;
+        }
+
+        /**
+         * Marks head as containing whole source, so extra capacity is released.
+         *
+         * @param sourceLength length of source.
+         */
+        void complete(long sourceLength) {
+            int oldCapacity;
+            int newCapacity;
+            synchronized (this) {
+                if (completed || sourceLength != length) {
+                    return;
+                }
+                completed = true;
+                oldCapacity = buffer.capacity();
+                newCapacity = length;
+                if (newCapacity == oldCapacity) {
+                    return;
+                }
+                ByteBuffer source = buffer.duplicate();
+                source.position(0).limit(length);
+                ByteBuffer shrunk = ByteBuffer.allocateDirect(length);
+                shrunk.put(source);
+                buffer = shrunk;
+            }
+            onShrunk(this, oldCapacity, newCapacity);
+        }
+
+        /**
+         * Forgets bytes after passed length, e.g. if cache file is shorter than head because it was deleted.
+         * Bytes are copied to new buffer, so readers of old bytes never get overwritten data.
+         */
+        synchronized void truncate(long newLength) {
+            if (newLength < length) {
+                ByteBuffer source = buffer.duplicate();
+                source.position(0).limit((int) newLength);
+                ByteBuffer truncated = ByteBuffer.allocateDirect(buffer.capacity());
+                truncated.put(source);
+                buffer = truncated;
+                length = (int) newLength;
+                completed = false;
+            }
+        }
+
+        int read(byte[] target, long offset, int count) {
+            ByteBuffer source = slice(offset, count);
+            if (source == null) {
+                return -1;
+            }
+            int read = source.remaining();
+            source.get(target, 0, read);
+            return read;
+        }
+
+        long transferTo(long offset, long maxCount, WritableByteChannel target) throws IOException {
+            ByteBuffer source = slice(offset, maxCount);
+            if (source == null) {
+                return -1;
+            }
+            long transferred = 0;
+            while (source.hasRemaining()) {
+                transferred += target.write(source);
+            }
+            return transferred;
+        }
+
+        private synchronized ByteBuffer slice(long offset, long maxCount) {
+            if (offset >= length) {
+                return null;
+            }
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) offset).limit((int) Math.min(length, offset + maxCount));
+            return slice;
+        }
+    }
+}
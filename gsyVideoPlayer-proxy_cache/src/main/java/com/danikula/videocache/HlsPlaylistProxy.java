@@ -0,0 +1,253 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkAllNotNull;
+import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves HLS playlists for {@link HttpProxyCacheServer}.
+ * <p>
+ * Playlist is fetched from source and rewritten so that segments, init sections, variant and rendition playlists
+ * are requested through proxy too, so every segment is cached as separate file like any other url.
+ * Static playlists (VOD media playlists and master playlists) are stored in cache directory with
+ * {@link #STORED_PLAYLIST_POSTFIX}, so they are never taken for cached media of the same url, and served without
+ * network while they are younger than {@link Config#hlsPlaylistTtl}, live playlists are fetched on every request.
+ * Stored playlist is also used if source is unavailable, so cached VOD can be replayed offline.
+ * <p>
+ * Keys ({@code #EXT-X-KEY}) are not proxied to avoid storing them on disk.
+ */
+final class HlsPlaylistProxy {
+
+    private static final String PLAYLIST_MIME = "application/vnd.apple.mpegurl";
+    private static final String STORED_PLAYLIST_POSTFIX = ".playlist";
+    private static final String TEMP_POSTFIX = ".tmp";
+    private static final int MAX_PLAYLIST_SIZE = 4 * 1024 * 1024;
+    private static final Pattern URI_ATTRIBUTE_PATTERN = Pattern.compile("URI=\"([^\"]*)\"");
+    private static final String[] PROXIED_URI_TAGS = {"#EXT-X-MAP", "#EXT-X-MEDIA", "#EXT-X-I-FRAME-STREAM-INF"};
+    private static final String[] STATIC_PLAYLIST_TAGS = {"#EXT-X-ENDLIST", "#EXT-X-PLAYLIST-TYPE:VOD", "#EXT-X-STREAM-INF"};
+
+    private final Config config;
+    private final String proxyHost;
+    private final int proxyPort;
+
+    HlsPlaylistProxy(Config config, String proxyHost, int proxyPort) {
+        checkAllNotNull(config, proxyHost);
+        this.config = config;
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+    }
+
+    /**
+     * Checks if url points to HLS playlist by its extension.
+     *
+     * @param url an url to check.
+     * @return {@code true} if url is HLS playlist.
+     */
+    static boolean isPlaylist(String url) {
+        int end = url.length();
+        int queryIndex = url.indexOf('?');
+        int fragmentIndex = url.indexOf('#');
+        end = queryIndex >= 0 ? Math.min(end, queryIndex) : end;
+        end = fragmentIndex >= 0 ? Math.min(end, fragmentIndex) : end;
+        String path = url.substring(0, end).toLowerCase(Locale.US);
+        return path.endsWith(".m3u8") || path.endsWith(".m3u");
+    }
+
+    /**
+     * @param partition config of cache partition playlist and its segments are cached in.
+     */
+    void processRequest(GetRequest request, String url, Config partition, Socket socket) throws ProxyCacheException, IOException {
+        String playlist = rewrite(getPlaylist(url, partition), url, partition);
+        byte[] body = playlist.getBytes(StandardCharsets.UTF_8);
+        String headers = "HTTP/1.1 200 OK\n" +
+            String.format(Locale.US, "Content-Length: %d\n", body.length) +
+            String.format(Locale.US, "Content-Type: %s\n", PLAYLIST_MIME) +
+            "\n"; // headers end
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        out.write(headers.getBytes(StandardCharsets.UTF_8));
+        if (!request.head) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private String getPlaylist(String url, Config partition) throws ProxyCacheException {
+        File cacheFile = partition.generateCacheFile(url);
+        File file = new File(cacheFile.getParentFile(), cacheFile.getName() + STORED_PLAYLIST_POSTFIX);
+        StoredPlaylist stored = readStored(file);
+        if (stored != null && System.currentTimeMillis() - stored.fetchTime < config.hlsPlaylistTtl) {
+            touch(file, partition);
+            return stored.playlist;
+        }
+        try {
+            String playlist = fetch(url);
+            if (isStatic(playlist)) {
+                store(file, playlist, partition);
+            }
+            return playlist;
+        } catch (ProxyCacheException e) {
+            if (stored == null) {
+                throw e;
+            }
+            HttpProxyCacheDebuger.printfWarning("Error fetching playlist " + url + ", stored one is used: " + e.getMessage());
+            return stored.playlist;
+        }
+    }
+
+    /**
+     * Fetches playlist and resolves all its uris, so it doesn't depend on playlist's url (that may be redirected).
+     */
+    private String fetch(String url) throws ProxyCacheException {
+        HttpUrlSource source = new HttpUrlSource(url, config);
+        try {
+            source.open(0);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            int readBytes;
+            while ((readBytes = source.read(buffer)) != -1) {
+                data.write(buffer, 0, readBytes);
+                if (data.size() > MAX_PLAYLIST_SIZE) {
+                    throw new ProxyCacheException("Playlist " + url + " is too big");
+                }
+            }
+            String playlist = new String(data.toByteArray(), StandardCharsets.UTF_8);
+            if (!playlist.startsWith("#EXTM3U") && !playlist.startsWith("\uFEFF#EXTM3U")) {
+                throw new ProxyCacheException("Invalid playlist " + url);
+            }
+            return rewrite(playlist, source.getResolvedUrl(), null);
+        } finally {
+            source.close();
+        }
+    }
+
+    private boolean isStatic(String playlist) {
+        for (String tag : STATIC_PLAYLIST_TAGS) {
+            if (playlist.contains(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces every uri in playlist with absolute one resolved against {@code baseUrl} or with proxy url
+     * of {@code partition} if it isn't {@code null}.
+     */
+    private String rewrite(String playlist, String baseUrl, Config partition) {
+        StringBuilder result = new StringBuilder(playlist.length() + 256);
+        for (String line : playlist.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                result.append(line);
+            } else if (!trimmed.startsWith("#")) {
+                result.append(mapUri(trimmed, baseUrl, partition));
+            } else if (trimmed.startsWith("#EXT") && trimmed.contains("URI=\"")) {
+                Config tagPartition = isProxiedTag(trimmed) ? partition : null;
+                Matcher matcher = URI_ATTRIBUTE_PATTERN.matcher(line);
+                StringBuffer rewritten = new StringBuffer();
+                while (matcher.find()) {
+                    String uri = "URI=\"" + mapUri(matcher.group(1), baseUrl, tagPartition) + "\"";
+                    matcher.appendReplacement(rewritten, Matcher.quoteReplacement(uri));
+                }
+                matcher.appendTail(rewritten);
+                result.append(rewritten);
+            } else {
+                result.append(line);
+            }
+            result.append('\n');
+        }
+        return result.toString();
+    }
+
+    private boolean isProxiedTag(String line) {
+        for (String tag : PROXIED_URI_TAGS) {
+            if (line.startsWith(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String mapUri(String uri, String baseUrl, Config partition) {
+        String absoluteUri;
+        try {
+            absoluteUri = new URL(new URL(baseUrl), uri).toString();
+        } catch (MalformedURLException e) {
+            return uri; // e.g. data: or skd: uri, leave it as is
+        }
+        if (partition == null || !absoluteUri.startsWith("http")) {
+            return absoluteUri;
+        }
+        return String.format(Locale.US, "http://%s:%d/%s", proxyHost, proxyPort, partition.proxyPath(absoluteUri));
+    }
+
+    private StoredPlaylist readStored(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long fetchTime = in.readLong();
+            byte[] data = new byte[(int) Math.min(file.length() - 8, MAX_PLAYLIST_SIZE)];
+            in.readFully(data);
+            return new StoredPlaylist(fetchTime, new String(data, StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            HttpProxyCacheDebuger.printfError("Error reading stored playlist " + file, e);
+            return null;
+        }
+    }
+
+    private void store(File file, String playlist, Config partition) {
+        File tempFile = new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
+        try {
+            if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Error creating directory " + file.getParentFile());
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeLong(System.currentTimeMillis());
+                out.write(playlist.getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Error renaming " + tempFile + " to " + file);
+            }
+            touch(file, partition);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error storing playlist " + file, e);
+        }
+    }
+
+    private void touch(File file, Config partition) {
+        try {
+            partition.diskUsage.touch(file);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error touching file " + file, e);
+        }
+    }
+
+    private static final class StoredPlaylist {
+
+        private final long fetchTime;
+        private final String playlist;
+
+        private StoredPlaylist(long fetchTime, String playlist) {
+            this.fetchTime = fetchTime;
+            this.playlist = playlist;
+        }
+    }
+}
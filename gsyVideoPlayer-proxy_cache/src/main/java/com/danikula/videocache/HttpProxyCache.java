@@ -4,32 +4,58 @@ import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
 
 import android.text.TextUtils;
 
-import com.danikula.videocache.file.FileCache;
-
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Locale;
 
 /**
  * {@link ProxyCache} that read http url and writes data to {@link Socket}
+ * <p>
+ * Every request is served through cache, even if it is far from downloaded data: file cache can hold
+ * several not connected ranges, so bytes downloaded for seek are cached too.
+ * If client's socket has channel, cached data is transferred from memory or cache file to socket without copying.
+ * {@code moov} box at the end of MP4 file is cached up front, so file that isn't prepared for streaming starts
+ * as fast as prepared one.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 class HttpProxyCache extends ProxyCache {
 
-    private static final float NO_CACHE_BARRIER = .2f;
+    private static final long MAX_TRANSFER_SIZE = 1024 * 1024;
 
     private final HttpUrlSource source;
-    private final FileCache cache;
+    private final HybridCache cache;
+    private final CacheStatsRecorder stats;
+    private final BandwidthScheduler bandwidthScheduler;
+    private final SegmentSourceFactory segmentSourceFactory = new RangeSourceFactory();
     private CacheListener listener;
 
-    public HttpProxyCache(HttpUrlSource source, FileCache cache) {
-        super(source, cache);
+    public HttpProxyCache(HttpUrlSource source, HybridCache cache) {
+        this(source, cache, 1);
+    }
+
+    public HttpProxyCache(HttpUrlSource source, HybridCache cache, int maxConnections) {
+        this(source, cache, maxConnections, new CacheStatsRecorder());
+    }
+
+    public HttpProxyCache(HttpUrlSource source, HybridCache cache, int maxConnections, CacheStatsRecorder stats) {
+        this(source, cache, maxConnections, stats, ProxyExecutor.getDefault());
+    }
+
+    public HttpProxyCache(HttpUrlSource source, HybridCache cache, int maxConnections, CacheStatsRecorder stats, ProxyExecutor executor) {
+        this(source, cache, maxConnections, stats, executor, BandwidthScheduler.unlimited());
+    }
+
+    public HttpProxyCache(HttpUrlSource source, HybridCache cache, int maxConnections, CacheStatsRecorder stats, ProxyExecutor executor, BandwidthScheduler bandwidthScheduler) {
+        super(source, cache, maxConnections, stats, executor, bandwidthScheduler);
         this.cache = cache;
         this.source = source;
+        this.stats = stats;
+        this.bandwidthScheduler = bandwidthScheduler;
     }
 
     public void registerCacheListener(CacheListener cacheListener) {
@@ -38,65 +64,134 @@ class HttpProxyCache extends ProxyCache {
 
     public void processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
         OutputStream out = new BufferedOutputStream(socket.getOutputStream());
-        String responseHeaders = newResponseHeaders(request);
+        CacheStatsRecorder.RequestRecord record = stats.startRequest(cache.available(request.rangeOffset)); // HEAD and unsatisfiable requests aren't finished, so aren't counted
+        long length = cache.isCompleted() ? cache.available() : sourceLength(request.rangeOffset);
+        boolean lengthKnown = length >= 0;
+        if (lengthKnown && request.partial && request.rangeOffset >= length) {
+            out.write(newNotSatisfiableResponseHeaders(length).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return;
+        }
+        long end = request.rangeEnd >= 0 && lengthKnown ? Math.min(request.rangeEnd, length) :
+            request.rangeEnd >= 0 ? request.rangeEnd : lengthKnown ? length : -1;
+        String responseHeaders = newResponseHeaders(request, length, end);
         out.write(responseHeaders.getBytes(StandardCharsets.UTF_8));
+        if (request.head) {
+            out.flush();
+            return;
+        }
 
-        long offset = request.rangeOffset;
-        if (isUseCache(request)) {
-            responseWithCache(out, offset);
-        } else {
-            responseWithoutCache(out, offset);
+        BandwidthScheduler.Playback playback = bandwidthScheduler.startPlayback();
+        try {
+            SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                out.flush();
+                responseWithCacheTransfer(channel, request.rangeOffset, end, record, playback);
+            } else {
+                responseWithCache(out, request.rangeOffset, end, record, playback);
+            }
+        } finally {
+            playback.finish();
+            record.finish();
         }
     }
 
-    private boolean isUseCache(GetRequest request) throws ProxyCacheException {
-        long sourceLength = source.length();
-        boolean sourceLengthKnown = sourceLength > 0;
-        long cacheAvailable = cache.available();
-        // do not use cache for partial requests which too far from available cache. It seems user seek video.
-        return !sourceLengthKnown || !request.partial || request.rangeOffset <= cacheAvailable + sourceLength * NO_CACHE_BARRIER;
+    /**
+     * Returns length of source. Unknown length is taken from response of source opened for requested data,
+     * separate request is made only if opening source is failed.
+     */
+    private long sourceLength(long offset) throws ProxyCacheException {
+        if (!source.hasContentInfo()) {
+            try {
+                waitForSourceInfo(offset);
+            } catch (ProxyCacheException e) {
+                HttpProxyCacheDebuger.printfWarning("Error receiving info of " + source.getUrl() + " with data, fetching it separately");
+            }
+        }
+        return source.length();
     }
 
-    private String newResponseHeaders(GetRequest request) throws IOException, ProxyCacheException {
+    /**
+     * @param end end of response's content (exclusive) or {@code -1} if it is unknown.
+     */
+    private String newResponseHeaders(GetRequest request, long length, long end) throws IOException, ProxyCacheException {
         String mime = source.getMime();
         boolean mimeKnown = !TextUtils.isEmpty(mime);
-        long length = cache.isCompleted() ? cache.available() : source.length();
         boolean lengthKnown = length >= 0;
-        long contentLength = request.partial ? length - request.rangeOffset : length;
-        boolean addRange = lengthKnown && request.partial;
+        boolean contentLengthKnown = end >= 0;
+        long contentLength = end - request.rangeOffset;
         return (request.partial ? "HTTP/1.1 206 PARTIAL CONTENT\n" : "HTTP/1.1 200 OK\n") +
             "Accept-Ranges: bytes\n" +
-            (lengthKnown ? format("Content-Length: %d\n", contentLength) : "") +
-            (addRange ? format("Content-Range: bytes %d-%d/%d\n", request.rangeOffset, length - 1, length) : "") +
+            (contentLengthKnown ? format("Content-Length: %d\n", contentLength) : "") +
+            (request.partial && contentLengthKnown ? format("Content-Range: bytes %d-%d/%s\n", request.rangeOffset, end - 1, lengthKnown ? String.valueOf(length) : "*") : "") +
             (mimeKnown ? format("Content-Type: %s\n", mime) : "") +
             "\n" // headers end
             ;
     }
 
-    private void responseWithCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
+    private String newNotSatisfiableResponseHeaders(long length) {
+        return "HTTP/1.1 416 RANGE NOT SATISFIABLE\n" +
+            "Accept-Ranges: bytes\n" +
+            format("Content-Range: bytes */%d\n", length) +
+            "Content-Length: 0\n" +
+            "\n" // headers end
+            ;
+    }
+
+    private void responseWithCache(OutputStream out, long offset, long end, CacheStatsRecorder.RequestRecord record,
+                                   BandwidthScheduler.Playback playback) throws ProxyCacheException, IOException {
         byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
         int readBytes;
-        while ((readBytes = read(buffer, offset, buffer.length)) != -1) {
+        while ((end < 0 || offset < end) && (readBytes = read(buffer, offset, readLength(offset, end, buffer.length))) != -1) {
             out.write(buffer, 0, readBytes);
             offset += readBytes;
+            record.onServed(readBytes);
+            playback.onServed(readBytes, bufferedAhead(offset, end));
         }
         out.flush();
     }
 
-    private void responseWithoutCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
-        HttpUrlSource newSourceNoCache = new HttpUrlSource(this.source);
-        try {
-            newSourceNoCache.open(offset);
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            int readBytes;
-            while ((readBytes = newSourceNoCache.read(buffer)) != -1) {
-                out.write(buffer, 0, readBytes);
-                offset += readBytes;
-            }
-            out.flush();
-        } finally {
-            newSourceNoCache.close();
+    private void responseWithCacheTransfer(SocketChannel channel, long offset, long end, CacheStatsRecorder.RequestRecord record,
+                                           BandwidthScheduler.Playback playback) throws ProxyCacheException, IOException {
+        long transferred;
+        do {
+            waitForCacheData(offset, readLength(offset, end, DEFAULT_BUFFER_SIZE));
+            transferred = cache.transferTo(offset, readLength(offset, end, MAX_TRANSFER_SIZE), channel);
+            offset += Math.max(transferred, 0);
+            record.onServed(Math.max(transferred, 0));
+            playback.onServed(Math.max(transferred, 0), bufferedAhead(offset, end));
+        } while (transferred != -1 && (end < 0 || offset < end));
+    }
+
+    /**
+     * Returns count of bytes cached ahead of client, {@link Long#MAX_VALUE} if the rest of response is cached.
+     */
+    private long bufferedAhead(long offset, long end) throws ProxyCacheException {
+        if (cache.isCompleted()) {
+            return Long.MAX_VALUE;
         }
+        long available = availableUpTo(offset);
+        return end >= 0 && available >= end ? Long.MAX_VALUE : available - offset;
+    }
+
+    private int readLength(long offset, long end, long maxLength) {
+        return (int) (end < 0 ? maxLength : Math.min(maxLength, end - offset));
+    }
+
+    @Override
+    protected SegmentSourceFactory getSegmentSourceFactory() {
+        return segmentSourceFactory;
+    }
+
+    @Override
+    protected boolean isSourceInfoReceived() {
+        return source.hasContentInfo();
+    }
+
+    @Override
+    protected void onSourceChanged() throws ProxyCacheException {
+        HttpProxyCacheDebuger.printfWarning("Source " + source.getUrl() + " is changed, cached data is discarded");
+        cache.discard();
     }
 
     private String format(String pattern, Object... args) {
@@ -106,7 +201,17 @@ class HttpProxyCache extends ProxyCache {
     @Override
     protected void onCachePercentsAvailableChanged(int percents) {
         if (listener != null) {
-            listener.onCacheAvailable(cache.file, source.getUrl(), percents);
+            listener.onCacheAvailable(cache.getFile(), source.getUrl(), percents);
+        }
+    }
+
+    private final class RangeSourceFactory implements SegmentSourceFactory {
+
+        @Override
+        public Source open(long offset, long end) throws ProxyCacheException {
+            HttpUrlSource segmentSource = new HttpUrlSource(source);
+            segmentSource.openRange(offset, end);
+            return segmentSource;
         }
     }
 }
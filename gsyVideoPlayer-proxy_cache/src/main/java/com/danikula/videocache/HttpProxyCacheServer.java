@@ -5,9 +5,12 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Looper;
 
 import com.danikula.videocache.file.DiskUsage;
+import com.danikula.videocache.file.FileCache;
 import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.LruDiskUsage;
 import com.danikula.videocache.file.Md5FileNameGenerator;
 import com.danikula.videocache.file.TotalCountLruDiskUsage;
 import com.danikula.videocache.file.TotalSizeLruDiskUsage;
@@ -19,9 +22,12 @@ import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -48,21 +54,34 @@ import javax.net.ssl.TrustManager;
  * // should return single instance of HttpProxyCacheServer shared for whole app.
  * }
  * </code></pre>
+ * Urls may be cached in separate named partitions with their own directories and limits
+ * (see {@link #addPartition(String, File, DiskUsage)}), all of them are served by the same server.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 public class HttpProxyCacheServer {
 
     private static final String PROXY_HOST = "127.0.0.1";
+    private static final int SERVER_SOCKET_BACKLOG = 50;
+    private static final int FIXED_POOL_SIZE = 8;
+    private static final int MAX_QUEUED_PREFETCHES = 32;
 
     private final Object clientsLock = new Object();
-    private final ExecutorService socketProcessor = Executors.newFixedThreadPool(8);
+    private final ExecutorService socketProcessor;
     private final Map<String, HttpProxyCacheServerClients> clientsMap = new ConcurrentHashMap<>();
-    private final ServerSocket serverSocket;
+    private final Object listeningLock = new Object();
     private final int port;
-    private final Thread waitConnectionThread;
     private final Config config;
+    private final Map<String, Config> partitions = new ConcurrentHashMap<>();
     private final Pinger pinger;
+    private final LivenessMonitor livenessMonitor;
+    private final HlsPlaylistProxy hlsPlaylistProxy;
+    private final PrefetchQueue prefetchQueue;
+    private final SourceInfoPruner sourceInfoPruner = new SourceInfoPruner();
+    private volatile ServerSocket serverSocket;
+    private volatile Thread waitConnectionThread;
+    private volatile SelectorRequestDispatcher requestDispatcher;
+    private boolean shutdown;
 
     public HttpProxyCacheServer(Context context) {
         this(new Builder(context).buildConfig());
@@ -70,23 +89,74 @@ public class HttpProxyCacheServer {
 
     private HttpProxyCacheServer(Config config) {
         this.config = checkNotNull(config);
+        attachDiskUsage(config.diskUsage);
+        boolean selectorEngine = config.requestEngine == RequestEngine.SELECTOR;
+        this.socketProcessor = selectorEngine ? Executors.newCachedThreadPool() : Executors.newFixedThreadPool(FIXED_POOL_SIZE);
         try {
-            InetAddress inetAddress = InetAddress.getByName(PROXY_HOST);
-            this.serverSocket = new ServerSocket(0, 8, inetAddress);
-            this.port = serverSocket.getLocalPort();
+            this.port = startListening(0);
             IgnoreHostProxySelector.install(PROXY_HOST, port);
-            CountDownLatch startSignal = new CountDownLatch(1);
-            this.waitConnectionThread = new Thread(new WaitRequestsRunnable(startSignal));
-            this.waitConnectionThread.start();
-            startSignal.await(); // freeze thread, wait for server starts
             this.pinger = new Pinger(PROXY_HOST, port);
-            HttpProxyCacheDebuger.printfLog("Proxy cache server started. Is it alive? " + isAlive());
+            this.livenessMonitor = new LivenessMonitor(pinger, new ListeningRestorer(), config.executor);
+            this.hlsPlaylistProxy = new HlsPlaylistProxy(config, PROXY_HOST, port);
+            this.prefetchQueue = new PrefetchQueue(config.maxPrefetches, config.maxPrefetchBytes, MAX_QUEUED_PREFETCHES,
+                config.executor, new PrefetchQueue.ClientsProvider() {
+                @Override
+                public HttpProxyCacheServerClients getClients(String url, Config partition) throws ProxyCacheException {
+                    return HttpProxyCacheServer.this.getClients(url, partition);
+                }
+            });
+            this.livenessMonitor.start();
+            HttpProxyCacheDebuger.printfLog("Proxy cache server started on port " + port);
         } catch (IOException | InterruptedException e) {
             socketProcessor.shutdown();
             throw new IllegalStateException("Error starting local proxy server", e);
         }
     }
 
+    /**
+     * Binds server socket and starts accepting connections.
+     *
+     * @param port a port to bind socket to, {@code 0} to use any free port.
+     * @return port socket is bound to.
+     */
+    private int startListening(int port) throws IOException, InterruptedException {
+        InetAddress inetAddress = InetAddress.getByName(PROXY_HOST);
+        // socket bound via channel accepts sockets with channels, so cached data can be transferred without copying
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        ServerSocket serverSocket = serverSocketChannel.socket();
+        try {
+            serverSocket.setReuseAddress(true); // allows to bind the same port again if socket died
+            serverSocket.bind(new InetSocketAddress(inetAddress, port), SERVER_SOCKET_BACKLOG);
+            SelectorRequestDispatcher requestDispatcher = config.requestEngine == RequestEngine.SELECTOR ?
+                new SelectorRequestDispatcher(serverSocketChannel, socketProcessor, new SocketRequestHandler()) : null;
+            CountDownLatch startSignal = new CountDownLatch(1);
+            Thread waitConnectionThread = new Thread(new WaitRequestsRunnable(serverSocket, requestDispatcher, startSignal));
+            this.serverSocket = serverSocket;
+            this.requestDispatcher = requestDispatcher;
+            this.waitConnectionThread = waitConnectionThread;
+            waitConnectionThread.start();
+            startSignal.await(); // freeze thread, wait for server starts
+            return serverSocket.getLocalPort();
+        } catch (IOException | RuntimeException e) {
+            ProxyCacheUtils.close(serverSocketChannel);
+            throw e;
+        }
+    }
+
+    private void stopListening() {
+        waitConnectionThread.interrupt();
+        if (requestDispatcher != null) {
+            requestDispatcher.shutdown();
+        }
+        try {
+            if (!serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            onError(new ProxyCacheException("Error shutting down proxy server", e));
+        }
+    }
+
     /**
      * Returns url that wrap original url and should be used for client (MediaPlayer, ExoPlayer, etc).
      * <p>
@@ -107,25 +177,105 @@ public class HttpProxyCacheServer {
      * <p>
      * If parameter {@code allowCachedFileUri} is {@code true} and file for this url is fully cached
      * (it means method {@link #isCached(String)} returns {@code true}) then file:// uri to cached file will be returned.
+     * HLS playlists are always served by proxy, because uris inside them are rewritten to proxy urls.
      *
      * @param url                a url to file that should be cached.
      * @param allowCachedFileUri {@code true} if allow to return file:// uri if url is fully cached
      * @return a wrapped by proxy url if file is not fully cached or url pointed to cache file otherwise (if {@code allowCachedFileUri} is {@code true}).
      */
     public String getProxyUrl(String url, boolean allowCachedFileUri) {
-        if (allowCachedFileUri && isCached(url)) {
-            File cacheFile = getCacheFile(url);
-            touchFileSafely(cacheFile);
+        return getProxyUrl(url, selectPartition(url), allowCachedFileUri);
+    }
+
+    /**
+     * Returns url that wrap original url and caches it in passed partition.
+     * Calling this method has same effect as calling {@link #getProxyUrl(String, String, boolean)} with 3rd parameter set to {@code true}.
+     *
+     * @param url       a url to file that should be cached.
+     * @param partition a name of partition added by {@link #addPartition(String, File, DiskUsage)}
+     *                  or {@code null} for default cache directory.
+     * @return a wrapped by proxy url if file is not fully cached or url pointed to cache file otherwise.
+     */
+    public String getProxyUrl(String url, String partition) {
+        return getProxyUrl(url, partition, true);
+    }
+
+    /**
+     * Returns url that wrap original url and caches it in passed partition, see {@link #getProxyUrl(String, boolean)}.
+     *
+     * @param url                a url to file that should be cached.
+     * @param partition          a name of partition added by {@link #addPartition(String, File, DiskUsage)}
+     *                           or {@code null} for default cache directory.
+     * @param allowCachedFileUri {@code true} if allow to return file:// uri if url is fully cached
+     * @return a wrapped by proxy url if file is not fully cached or url pointed to cache file otherwise (if {@code allowCachedFileUri} is {@code true}).
+     */
+    public String getProxyUrl(String url, String partition, boolean allowCachedFileUri) {
+        Config partitionConfig = requirePartition(partition);
+        if (allowCachedFileUri && !HlsPlaylistProxy.isPlaylist(url) && isCached(url, partitionConfig)) {
+            File cacheFile = partitionConfig.generateCacheFile(url);
+            touchFileSafely(cacheFile, partitionConfig);
             return Uri.fromFile(cacheFile).toString();
         }
-        return isAlive() ? appendToProxyUrl(url) : url;
+        if (livenessMonitor.isAlive()) {
+            return appendToProxyUrl(url, partitionConfig);
+        }
+        livenessMonitor.checkNow();
+        return url;
+    }
+
+    /**
+     * Adds named cache partition, urls requested with its name are cached in its own directory and
+     * cleaned by its own disk usage policy. Partitions can be added at any time, server isn't restarted
+     * and running streams are not interrupted. Adding partition with the same name and directory again has no effect.
+     * <p>
+     * <b>Note</b> directory must be used <b>only</b> by single partition.
+     *
+     * @param name      a name of partition, can't be {@code null}.
+     * @param cacheRoot a cache directory of partition, can't be {@code null}.
+     * @param diskUsage a disk usage strategy of partition, can't be {@code null}.
+     * @throws IllegalArgumentException if partition with the same name but another directory is added already.
+     */
+    public void addPartition(String name, File cacheRoot, DiskUsage diskUsage) {
+        checkAllNotNull(name, cacheRoot, diskUsage);
+        synchronized (partitions) {
+            Config partition = partitions.get(name);
+            if (partition == null) {
+                partitions.put(name, config.forPartition(name, cacheRoot, diskUsage));
+                attachDiskUsage(diskUsage);
+            } else if (!partition.cacheRoot.equals(cacheRoot)) {
+                throw new IllegalArgumentException("Partition " + name + " is added already with directory " + partition.cacheRoot);
+            }
+        }
+    }
+
+    /**
+     * Checks if partition is added.
+     *
+     * @param name a name of partition.
+     * @return {@code true} if partition with passed name is added by {@link #addPartition(String, File, DiskUsage)}.
+     */
+    public boolean hasPartition(String name) {
+        checkNotNull(name);
+        return partitions.containsKey(name);
     }
 
     public void registerCacheListener(CacheListener cacheListener, String url) {
+        registerCacheListener(cacheListener, url, selectPartition(url));
+    }
+
+    /**
+     * Registers listener of url cached in passed partition.
+     *
+     * @param cacheListener a listener.
+     * @param url           an url listener is registered for.
+     * @param partition     a name of partition or {@code null} for default cache directory.
+     */
+    public void registerCacheListener(CacheListener cacheListener, String url, String partition) {
         checkAllNotNull(cacheListener, url);
+        Config partitionConfig = requirePartition(partition);
         synchronized (clientsLock) {
             try {
-                getClients(url).registerCacheListener(cacheListener);
+                getClients(url, partitionConfig).registerCacheListener(cacheListener);
             } catch (ProxyCacheException e) {
                 HttpProxyCacheDebuger.printfWarning("Error registering cache listener", e.getMessage());
             }
@@ -133,10 +283,15 @@ public class HttpProxyCacheServer {
     }
 
     public void unregisterCacheListener(CacheListener cacheListener, String url) {
+        unregisterCacheListener(cacheListener, url, selectPartition(url));
+    }
+
+    public void unregisterCacheListener(CacheListener cacheListener, String url, String partition) {
         checkAllNotNull(cacheListener, url);
+        Config partitionConfig = requirePartition(partition);
         synchronized (clientsLock) {
             try {
-                getClients(url).unregisterCacheListener(cacheListener);
+                getClients(url, partitionConfig).unregisterCacheListener(cacheListener);
             } catch (ProxyCacheException e) {
                 HttpProxyCacheDebuger.printfWarning("Error registering cache listener", e.getMessage());
             }
@@ -160,43 +315,178 @@ public class HttpProxyCacheServer {
      */
     public boolean isCached(String url) {
         checkNotNull(url, "Url can't be null!");
-        return getCacheFile(url).exists();
+        return isCached(url, requirePartition(selectPartition(url)));
+    }
+
+    /**
+     * Checks is partition contains fully cached file for particular url.
+     *
+     * @param url       an url cache file will be checked for.
+     * @param partition a name of partition or {@code null} for default cache directory.
+     * @return {@code true} if partition contains fully cached file for passed in parameters url.
+     */
+    public boolean isCached(String url, String partition) {
+        checkNotNull(url, "Url can't be null!");
+        return isCached(url, requirePartition(partition));
+    }
+
+    private boolean isCached(String url, Config partition) {
+        return partition.generateCacheFile(url).exists();
+    }
+
+    /**
+     * Queues caching of first bytes of url in background, e.g. for next items of feed, so playback starts from cache.
+     * Prefetches with higher priority are started first, only limited count of them run concurrently
+     * (see {@link Builder#prefetchLimits(int, long)}) and while any url is played only one prefetch runs.
+     * Calling it again for queued url changes its priority and size. Fully cached urls and HLS playlists are ignored.
+     *
+     * @param url      an url to be prefetched.
+     * @param bytes    count of first bytes to be cached.
+     * @param priority priority of prefetch, higher value means earlier start.
+     */
+    public void prefetch(String url, long bytes, int priority) {
+        checkNotNull(url, "Url can't be null!");
+        prefetch(url, selectPartition(url), bytes, priority);
+    }
+
+    /**
+     * Queues caching of first bytes of url in passed partition, see {@link #prefetch(String, long, int)}.
+     *
+     * @param url       an url to be prefetched.
+     * @param partition a name of partition or {@code null} for default cache directory.
+     * @param bytes     count of first bytes to be cached.
+     * @param priority  priority of prefetch, higher value means earlier start.
+     */
+    public void prefetch(String url, String partition, long bytes, int priority) {
+        checkNotNull(url, "Url can't be null!");
+        Config partitionConfig = requirePartition(partition);
+        if (bytes <= 0 || HlsPlaylistProxy.isPlaylist(url) || isCached(url, partitionConfig)) {
+            return;
+        }
+        prefetchQueue.add(url, partitionConfig, bytes, priority);
+    }
+
+    /**
+     * Removes url from prefetch queue and stops its prefetch if it is running, e.g. when item is scrolled away.
+     * Data cached already is kept.
+     *
+     * @param url an url passed to {@link #prefetch(String, long, int)}.
+     */
+    public void cancelPrefetch(String url) {
+        checkNotNull(url, "Url can't be null!");
+        cancelPrefetch(url, selectPartition(url));
+    }
+
+    /**
+     * Removes url from prefetch queue of passed partition and stops its prefetch if it is running.
+     *
+     * @param url       an url passed to {@link #prefetch(String, String, long, int)}.
+     * @param partition a name of partition or {@code null} for default cache directory.
+     */
+    public void cancelPrefetch(String url, String partition) {
+        checkNotNull(url, "Url can't be null!");
+        prefetchQueue.cancel(url, requirePartition(partition));
+    }
+
+    /**
+     * Clears prefetch queue and stops all running prefetches.
+     */
+    public void cancelAllPrefetches() {
+        prefetchQueue.cancelAll();
+    }
+
+    /**
+     * Returns executor sources are downloaded on, e.g. to monitor its queue size and count of active tasks.
+     *
+     * @return executor of background tasks.
+     */
+    public ProxyExecutor getExecutor() {
+        return config.executor;
+    }
+
+    /**
+     * Returns scheduler sharing bandwidth between played urls and prefetches, e.g. to monitor estimated bandwidth
+     * and time prefetches were throttled.
+     *
+     * @return bandwidth scheduler.
+     */
+    public BandwidthScheduler getBandwidthScheduler() {
+        return config.bandwidthScheduler;
+    }
+
+    /**
+     * Returns statistics of cache usage since server start or last {@link #resetCacheStats()}.
+     *
+     * @return snapshot of cache statistics.
+     */
+    public CacheStats getCacheStats() {
+        return config.stats.snapshot();
+    }
+
+    /**
+     * Resets all counters of cache statistics to zero.
+     */
+    public void resetCacheStats() {
+        config.stats.reset();
     }
 
     public void shutdown() {
         HttpProxyCacheDebuger.printfLog("Shutdown proxy server");
 
+        prefetchQueue.shutdown();
         shutdownClients();
 
+        config.sourceInfoStorage.prune(sourceInfoPruner);
         config.sourceInfoStorage.release();
 
-        waitConnectionThread.interrupt();
-        try {
-            if (!serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            onError(new ProxyCacheException("Error shutting down proxy server", e));
+        livenessMonitor.shutdown();
+        synchronized (listeningLock) {
+            shutdown = true;
+            stopListening();
         }
+        socketProcessor.shutdown();
     }
 
-    private boolean isAlive() {
-        return pinger.ping(3, 70);   // 70+140+280=max~500ms
+    private String appendToProxyUrl(String url, Config partition) {
+        return String.format(Locale.US, "http://%s:%d/%s", PROXY_HOST, port, partition.proxyPath(url));
     }
 
-    private String appendToProxyUrl(String url) {
-        return String.format(Locale.US, "http://%s:%d/%s", PROXY_HOST, port, ProxyCacheUtils.encode(url));
+    private String selectPartition(String url) {
+        if (config.partitionSelector == null) {
+            return null;
+        }
+        String partition = config.partitionSelector.select(url);
+        if (partition != null && !partitions.containsKey(partition)) {
+            HttpProxyCacheDebuger.printfWarning("Partition " + partition + " isn't added, default one is used for " + url);
+            return null;
+        }
+        return partition;
     }
 
-    private File getCacheFile(String url) {
-        File cacheDir = config.cacheRoot;
-        String fileName = config.fileNameGenerator.generate(url);
-        return new File(cacheDir, fileName);
+    private Config requirePartition(String name) {
+        if (name == null) {
+            return config;
+        }
+        Config partition = partitions.get(name);
+        if (partition == null) {
+            throw new IllegalArgumentException("Partition " + name + " isn't added");
+        }
+        return partition;
     }
 
-    private void touchFileSafely(File cacheFile) {
+    /**
+     * Makes disk usage trim cache on configured executor and prune source infos of evicted files.
+     */
+    private void attachDiskUsage(DiskUsage diskUsage) {
+        if (diskUsage instanceof LruDiskUsage) {
+            ((LruDiskUsage) diskUsage).setExecutor(config.executor);
+            ((LruDiskUsage) diskUsage).addEvictionListener(sourceInfoPruner);
+        }
+    }
+
+    private void touchFileSafely(File cacheFile, Config partition) {
         try {
-            config.diskUsage.touch(cacheFile);
+            partition.diskUsage.touch(cacheFile);
         } catch (IOException e) {
             HttpProxyCacheDebuger.printfError("Error touching file " + cacheFile, e);
         }
@@ -211,7 +501,7 @@ public class HttpProxyCacheServer {
         }
     }
 
-    private void waitForRequest() {
+    private void waitForRequest(ServerSocket serverSocket) {
         try {
             while (!Thread.currentThread().isInterrupted()) {
                 Socket socket = serverSocket.accept();
@@ -225,12 +515,37 @@ public class HttpProxyCacheServer {
     private void processSocket(Socket socket) {
         try {
             GetRequest request = GetRequest.read(socket.getInputStream());
-            String url = ProxyCacheUtils.decode(request.uri);
+            processRequest(request, socket);
+        } catch (IOException e) {
+            onError(new ProxyCacheException("Error reading request", e));
+            releaseSocket(socket);
+        }
+    }
+
+    private void processRequest(GetRequest request, Socket socket) {
+        try {
+            int partitionEnd = request.uri.indexOf('/');
+            String url = ProxyCacheUtils.decode(request.uri.substring(partitionEnd + 1));
+            Config partition = config;
+            if (partitionEnd >= 0) {
+                String name = ProxyCacheUtils.decode(request.uri.substring(0, partitionEnd));
+                partition = partitions.get(name);
+                if (partition == null) {
+                    throw new ProxyCacheException("Unknown cache partition " + name);
+                }
+            }
             if (pinger.isPingRequest(url)) {
                 pinger.responseToPing(socket);
+            } else if (HlsPlaylistProxy.isPlaylist(url)) {
+                hlsPlaylistProxy.processRequest(request, url, partition, socket);
             } else {
-                HttpProxyCacheServerClients clients = getClients(url);
-                clients.processRequest(request, socket);
+                HttpProxyCacheServerClients clients = getClients(url, partition);
+                prefetchQueue.onPlaybackStarted();
+                try {
+                    clients.processRequest(request, socket);
+                } finally {
+                    prefetchQueue.onPlaybackFinished();
+                }
             }
         } catch (SocketException e) {
             // There is no way to determine that client closed connection http://stackoverflow.com/a/10241044/999458
@@ -243,12 +558,13 @@ public class HttpProxyCacheServer {
         }
     }
 
-    private HttpProxyCacheServerClients getClients(String url) throws ProxyCacheException {
+    private HttpProxyCacheServerClients getClients(String url, Config partition) throws ProxyCacheException {
         synchronized (clientsLock) {
-            HttpProxyCacheServerClients clients = clientsMap.get(url);
+            String key = partition.clientsKey(url);
+            HttpProxyCacheServerClients clients = clientsMap.get(key);
             if (clients == null) {
-                clients = new HttpProxyCacheServerClients(url, config);
-                clientsMap.put(url, clients);
+                clients = new HttpProxyCacheServerClients(url, partition);
+                clientsMap.put(key, clients);
             }
             return clients;
         }
@@ -309,16 +625,58 @@ public class HttpProxyCacheServer {
 
     private final class WaitRequestsRunnable implements Runnable {
 
+        private final ServerSocket serverSocket;
+        private final SelectorRequestDispatcher requestDispatcher;
         private final CountDownLatch startSignal;
 
-        public WaitRequestsRunnable(CountDownLatch startSignal) {
+        public WaitRequestsRunnable(ServerSocket serverSocket, SelectorRequestDispatcher requestDispatcher, CountDownLatch startSignal) {
+            this.serverSocket = serverSocket;
+            this.requestDispatcher = requestDispatcher;
             this.startSignal = startSignal;
         }
 
         @Override
         public void run() {
             startSignal.countDown();
-            waitForRequest();
+            if (requestDispatcher != null) {
+                dispatchRequests(requestDispatcher);
+            } else {
+                waitForRequest(serverSocket);
+            }
+        }
+    }
+
+    private final class ListeningRestorer implements LivenessMonitor.Listener {
+
+        @Override
+        public boolean isListening() {
+            return waitConnectionThread.isAlive() && !serverSocket.isClosed();
+        }
+
+        @Override
+        public void restart() {
+            synchronized (listeningLock) {
+                if (shutdown) {
+                    return;
+                }
+                stopListening();
+                try {
+                    startListening(port); // the same port, so urls returned before are still valid
+                    HttpProxyCacheDebuger.printfLog("Proxy cache server is restarted on port " + port);
+                } catch (IOException e) {
+                    onError(new ProxyCacheException("Error restarting proxy server on port " + port, e));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void dispatchRequests(SelectorRequestDispatcher requestDispatcher) {
+        try {
+            requestDispatcher.run();
+        } catch (IOException e) {
+            onError(new ProxyCacheException("Error during dispatching requests", e));
         }
     }
 
@@ -336,27 +694,99 @@ public class HttpProxyCacheServer {
         }
     }
 
+    /**
+     * Removes stored infos of urls which aren't cached (even partially) in any partition after cache files are evicted.
+     */
+    private final class SourceInfoPruner implements LruDiskUsage.EvictionListener, SourceInfoStorage.Filter {
+
+        @Override
+        public void onEvicted(File file) {
+            config.sourceInfoStorage.prune(this);
+        }
+
+        @Override
+        public boolean accept(String url) {
+            if (isCachedPartially(url, config)) {
+                return true;
+            }
+            for (Config partition : partitions.values()) {
+                if (isCachedPartially(url, partition)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isCachedPartially(String url, Config partition) {
+            File cacheFile = partition.generateCacheFile(url);
+            return cacheFile.exists() || new File(cacheFile.getParentFile(), cacheFile.getName() + FileCache.TEMP_POSTFIX).exists();
+        }
+    }
+
+    private final class SocketRequestHandler implements SelectorRequestDispatcher.RequestHandler {
+
+        @Override
+        public void handle(GetRequest request, Socket socket) {
+            processRequest(request, socket);
+        }
+    }
+
     /**
      * Builder for {@link HttpProxyCacheServer}.
      */
     public static final class Builder {
 
         private static final long DEFAULT_MAX_SIZE = 512 * 1024 * 1024;
+        private static final long DEFAULT_HLS_PLAYLIST_TTL = 24 * 60 * 60 * 1000;
+        private static final long DEFAULT_MAX_MEMORY_SIZE = 8 * 1024 * 1024;
+        private static final int DEFAULT_MEMORY_HEAD_SIZE = 512 * 1024;
+        private static final long DEFAULT_READER_LINGER = 3 * 1000;
+        private static final int DEFAULT_MAX_PREFETCHES = 2;
+        private static final long DEFAULT_MAX_PREFETCH_BYTES = 4 * 1024 * 1024;
+        private static final long DEFAULT_REDIRECT_TTL = 10 * 60 * 1000;
+        private static final float DEFAULT_PLAYBACK_SHARE = 0.7f;
+        private static final long DEFAULT_PLAYBACK_BUFFER = 15 * 1000;
 
         private File cacheRoot;
         private FileNameGenerator fileNameGenerator;
         private DiskUsage diskUsage;
-        private final SourceInfoStorage sourceInfoStorage;
+        private final Context context;
         private HeaderInjector headerInjector;
         private HostnameVerifier v;
         private TrustManager[] trustAllCerts;
+        private RequestEngine requestEngine;
+        private int parallelDownloads;
+        private long hlsPlaylistTtl;
+        private HeadMemoryCache headMemoryCache;
+        private int writeBufferSize;
+        private CoalescingDispatcher progressDispatcher;
+        private ProxyExecutor executor;
+        private long readerLinger;
+        private int maxPrefetches;
+        private long maxPrefetchBytes;
+        private long redirectTtl;
+        private PartitionSelector partitionSelector;
+        private BandwidthScheduler bandwidthScheduler;
+        private final Map<String, Partition> partitions = new LinkedHashMap<>();
 
         public Builder(Context context) {
-            this.sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(context);
+            this.context = checkNotNull(context);
             this.cacheRoot = StorageUtils.getIndividualCacheDirectory(context);
             this.diskUsage = new TotalSizeLruDiskUsage(DEFAULT_MAX_SIZE);
             this.fileNameGenerator = new Md5FileNameGenerator();
             this.headerInjector = new EmptyHeadersInjector();
+            this.requestEngine = RequestEngine.SELECTOR;
+            this.parallelDownloads = 1;
+            this.hlsPlaylistTtl = DEFAULT_HLS_PLAYLIST_TTL;
+            this.headMemoryCache = new HeadMemoryCache(DEFAULT_MAX_MEMORY_SIZE, DEFAULT_MEMORY_HEAD_SIZE);
+            this.writeBufferSize = FileCache.DEFAULT_WRITE_BUFFER_SIZE;
+            this.progressDispatcher = CoalescingDispatcher.getMain();
+            this.executor = ProxyExecutor.getDefault();
+            this.readerLinger = DEFAULT_READER_LINGER;
+            this.maxPrefetches = DEFAULT_MAX_PREFETCHES;
+            this.maxPrefetchBytes = DEFAULT_MAX_PREFETCH_BYTES;
+            this.redirectTtl = DEFAULT_REDIRECT_TTL;
+            this.bandwidthScheduler = new BandwidthScheduler(0, DEFAULT_PLAYBACK_SHARE, DEFAULT_PLAYBACK_BUFFER);
         }
 
         /**
@@ -450,6 +880,216 @@ public class HttpProxyCacheServer {
             return this;
         }
 
+        /**
+         * Sets engine to be used for accepting connections and processing requests.
+         * Default value is {@link RequestEngine#SELECTOR} that has no limit of concurrent streams.
+         *
+         * @param requestEngine an engine, can't be {@code null}.
+         * @return a builder.
+         */
+        public Builder requestEngine(RequestEngine requestEngine) {
+            this.requestEngine = checkNotNull(requestEngine);
+            return this;
+        }
+
+        /**
+         * Sets max count of concurrent connections used for downloading single url.
+         * <p>
+         * If count is more than 1, files longer than 2 Mb are split into 1 Mb segments downloaded in parallel with
+         * range requests, it speeds up initial buffering on high-latency networks. Server must support range requests.
+         * Default value is 1, it means every url is downloaded by single connection.
+         * </p>
+         *
+         * @param connections max count of connections per url, must be positive.
+         * @return a builder.
+         */
+        public Builder parallelDownloads(int connections) {
+            if (connections <= 0) {
+                throw new IllegalArgumentException("Connections count must be positive number!");
+            }
+            this.parallelDownloads = connections;
+            return this;
+        }
+
+        /**
+         * Sets time static HLS playlists (VOD media playlists and master playlists) are served from cache
+         * without fetching them again. Live playlists are never cached.
+         * Default value is 24 hours.
+         *
+         * @param ttl time to live of cached playlist in milliseconds, can't be negative.
+         * @return a builder.
+         */
+        public Builder hlsPlaylistTtl(long ttl) {
+            if (ttl < 0) {
+                throw new IllegalArgumentException("Playlist ttl can't be negative!");
+            }
+            this.hlsPlaylistTtl = ttl;
+            return this;
+        }
+
+        /**
+         * Sets size of memory cache holding first bytes of recently played urls in front of disk cache,
+         * so replaying video starts without reading flash. Memory is allocated outside of java heap.
+         * Default values are 8 Mb of memory and 512 Kb per url.
+         *
+         * @param maxSize  max size of memory cache in bytes, {@code 0} disables memory cache.
+         * @param headSize count of first bytes of every url kept in memory, {@code 0} disables memory cache.
+         * @return a builder.
+         */
+        public Builder memoryCache(long maxSize, int headSize) {
+            this.headMemoryCache = new HeadMemoryCache(maxSize, headSize);
+            return this;
+        }
+
+        /**
+         * Sets size of buffer downloaded data is collected in before writing it to cache file, larger buffer means
+         * fewer disk writes. Buffered data is served to clients from memory, so it doesn't delay playback.
+         * Default value is 256 Kb.
+         *
+         * @param size size of buffer in bytes, {@code 0} means every downloaded chunk is written to file right away.
+         * @return a builder.
+         */
+        public Builder writeBufferSize(int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("Buffer size can't be negative!");
+            }
+            this.writeBufferSize = size;
+            return this;
+        }
+
+        /**
+         * Sets min interval between deliveries of cache progress to {@link CacheListener}s. Progress is coalesced,
+         * listeners get only the latest percents. Default value is one frame (16 ms), dispatcher is shared
+         * with other main thread progress callbacks of player.
+         *
+         * @param interval min interval in milliseconds, can't be negative.
+         * @return a builder.
+         */
+        public Builder cacheProgressInterval(long interval) {
+            this.progressDispatcher = interval == CoalescingDispatcher.DEFAULT_INTERVAL_MS ? CoalescingDispatcher.getMain()
+                : new CoalescingDispatcher(Looper.getMainLooper(), interval);
+            return this;
+        }
+
+        /**
+         * Sets executor sources are downloaded and all background work of proxy (saving source infos, trimming cache,
+         * checking liveness) is done on. By default executor shared by all proxy components
+         * ({@link ProxyExecutor#getDefault()}) with {@value ProxyExecutor#DEFAULT_MAX_THREADS} threads for short tasks
+         * and {@value ProxyExecutor#DEFAULT_MAX_READERS} threads for readers is used.
+         *
+         * @param executor an executor, can't be {@code null}.
+         * @return a builder.
+         */
+        public Builder executor(ProxyExecutor executor) {
+            this.executor = checkNotNull(executor);
+            return this;
+        }
+
+        /**
+         * Sets time source is kept being downloaded after its last client disconnected. Players often close
+         * connection and request another range right away (e.g. probing {@code moov} atom or seeking),
+         * such request reuses running reader and its connection instead of connecting to server again.
+         * Default value is 3 seconds.
+         *
+         * @param linger linger time in milliseconds, {@code 0} means reader is stopped right after last client left.
+         * @return a builder.
+         */
+        public Builder readerLinger(long linger) {
+            if (linger < 0) {
+                throw new IllegalArgumentException("Linger time can't be negative!");
+            }
+            this.readerLinger = linger;
+            return this;
+        }
+
+        /**
+         * Sets limits of prefetches queued by {@link HttpProxyCacheServer#prefetch(String, long, int)}.
+         * Default values are 2 concurrent prefetches and 4 Mb.
+         *
+         * @param maxConcurrent max count of concurrently running prefetches, {@code 0} disables prefetching.
+         * @param maxBytes      max sum of bytes requested by running prefetches, single prefetch may exceed it.
+         * @return a builder.
+         */
+        public Builder prefetchLimits(int maxConcurrent, long maxBytes) {
+            if (maxConcurrent < 0 || maxBytes < 0) {
+                throw new IllegalArgumentException("Prefetch limits can't be negative!");
+            }
+            this.maxPrefetches = maxConcurrent;
+            this.maxPrefetchBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Sets time final url of redirects is requested directly instead of following redirects from original url
+         * again, e.g. when signed url redirects to CDN's edge node. Final url is stored with source's info and
+         * is forgotten earlier if it responds with error. Default value is 10 minutes.
+         *
+         * @param ttl time to live of final url in milliseconds, {@code 0} means redirects are followed on every request.
+         * @return a builder.
+         */
+        public Builder redirectTtl(long ttl) {
+            if (ttl < 0) {
+                throw new IllegalArgumentException("Redirect ttl can't be negative!");
+            }
+            this.redirectTtl = ttl;
+            return this;
+        }
+
+        /**
+         * Sets how bandwidth is shared between played urls and background downloads (prefetches).
+         * While any url is played, prefetches get the rest of bandwidth left after playback's share, and only minimal
+         * rate while less than {@code bufferMillis} of playback is cached ahead of player.
+         * Default values are 70% of estimated bandwidth and 15 seconds.
+         *
+         * @param bandwidth     bandwidth of network in bytes per second or {@code 0} to estimate it from downloaded data.
+         * @param playbackShare share of bandwidth reserved for played urls, {@code 0} disables throttling of prefetches.
+         * @param bufferMillis  duration of playback to be cached before prefetches get their share.
+         * @return a builder.
+         */
+        public Builder bandwidthShare(long bandwidth, float playbackShare, long bufferMillis) {
+            this.bandwidthScheduler = new BandwidthScheduler(bandwidth, playbackShare, bufferMillis);
+            return this;
+        }
+
+        /**
+         * Sets scheduler sharing bandwidth between played urls and background downloads,
+         * e.g. the same one for several servers. See {@link #bandwidthShare(long, float, long)}.
+         *
+         * @param bandwidthScheduler a scheduler, can't be {@code null}.
+         * @return a builder.
+         */
+        public Builder bandwidthScheduler(BandwidthScheduler bandwidthScheduler) {
+            this.bandwidthScheduler = checkNotNull(bandwidthScheduler);
+            return this;
+        }
+
+        /**
+         * Adds named cache partition with its own directory and disk usage policy,
+         * see {@link HttpProxyCacheServer#addPartition(String, File, DiskUsage)}.
+         *
+         * @param name      a name of partition, can't be {@code null}.
+         * @param cacheRoot a cache directory of partition, can't be {@code null}.
+         * @param diskUsage a disk usage strategy of partition, can't be {@code null}.
+         * @return a builder.
+         */
+        public Builder addPartition(String name, File cacheRoot, DiskUsage diskUsage) {
+            checkAllNotNull(name, cacheRoot, diskUsage);
+            this.partitions.put(name, new Partition(cacheRoot, diskUsage));
+            return this;
+        }
+
+        /**
+         * Sets selector of partition for urls passed to proxy without explicit partition,
+         * e.g. to {@link HttpProxyCacheServer#getProxyUrl(String)}. By default such urls are cached in default directory.
+         *
+         * @param partitionSelector a selector or {@code null} to use default directory.
+         * @return a builder.
+         */
+        public Builder partitionSelector(PartitionSelector partitionSelector) {
+            this.partitionSelector = partitionSelector;
+            return this;
+        }
+
         /**
          * Builds new instance of {@link HttpProxyCacheServer}.
          *
@@ -457,11 +1097,27 @@ public class HttpProxyCacheServer {
          */
         public HttpProxyCacheServer build() {
             Config config = buildConfig();
-            return new HttpProxyCacheServer(config);
+            HttpProxyCacheServer server = new HttpProxyCacheServer(config);
+            for (Map.Entry<String, Partition> partition : partitions.entrySet()) {
+                server.addPartition(partition.getKey(), partition.getValue().cacheRoot, partition.getValue().diskUsage);
+            }
+            return server;
         }
 
         private Config buildConfig() {
-            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, headerInjector, v, trustAllCerts);
+            SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(context, executor);
+            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, headerInjector, v, trustAllCerts, requestEngine, parallelDownloads, hlsPlaylistTtl, headMemoryCache, writeBufferSize, progressDispatcher, executor, readerLinger, maxPrefetches, maxPrefetchBytes, redirectTtl, partitionSelector, bandwidthScheduler);
+        }
+
+        private static final class Partition {
+
+            private final File cacheRoot;
+            private final DiskUsage diskUsage;
+
+            Partition(File cacheRoot, DiskUsage diskUsage) {
+                this.cacheRoot = cacheRoot;
+                this.diskUsage = diskUsage;
+            }
         }
 
     }
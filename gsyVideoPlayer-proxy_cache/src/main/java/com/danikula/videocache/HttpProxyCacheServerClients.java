@@ -2,10 +2,6 @@ package com.danikula.videocache;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
 
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-
 import com.danikula.videocache.file.FileCache;
 
 import java.io.File;
@@ -13,6 +9,7 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -25,34 +22,119 @@ final class HttpProxyCacheServerClients {
     private final AtomicInteger clientsCount = new AtomicInteger(0);
     private final String url;
     private final List<CacheListener> listeners = new CopyOnWriteArrayList<>();
-    private final CacheListener uiCacheListener;
+    private final UiCacheListener uiCacheListener;
     private final Config config;
     private volatile HttpProxyCache proxyCache;
+    private Future<?> lingerTask;
+    private int lingerGeneration;
+    private PrefetchFinisher prefetch;
 
     public HttpProxyCacheServerClients(String url, Config config) {
         this.url = checkNotNull(url);
         this.config = checkNotNull(config);
-        this.uiCacheListener = new UiListenerHandler(url, listeners);
+        this.uiCacheListener = new UiCacheListener(url, listeners, config.progressDispatcher);
     }
 
     public void processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
-        startProcessRequest();
+        HttpProxyCache proxyCache = startProcessRequest(false);
         try {
-            clientsCount.incrementAndGet();
             proxyCache.processRequest(request, socket);
         } finally {
-            finishProcessRequest();
+            finishProcessRequest(true);
+        }
+    }
+
+    /**
+     * Starts caching first bytes of url without blocking, sharing source reader with players' requests.
+     * Reader started by prefetch has {@link ProxyExecutor#PRIORITY_PREFETCH}, stops at {@code bytes}
+     * and is shut down right after prefetch if url isn't played.
+     *
+     * @param bytes    count of first bytes to be cached.
+     * @param callback a callback called once prefetch is finished, failed or cancelled.
+     * @throws ProxyCacheException if error occur while opening cache.
+     */
+    public void prefetch(long bytes, ProxyCache.PrefetchCallback callback) throws ProxyCacheException {
+        PrefetchFinisher finisher;
+        synchronized (this) {
+            finisher = new PrefetchFinisher(startProcessRequest(true), checkNotNull(callback));
+            prefetch = finisher;
+        }
+        finisher.proxyCache.prefetch(bytes, finisher);
+    }
+
+    /**
+     * Cancels prefetch started with passed callback, if it isn't finished yet. Callback is called with error.
+     *
+     * @param callback a callback prefetch is started with.
+     */
+    public synchronized void cancelPrefetch(ProxyCache.PrefetchCallback callback) {
+        if (prefetch != null && prefetch.callback == callback) {
+            prefetch.proxyCache.cancelPrefetch(prefetch);
+        }
+    }
+
+    private synchronized void onPrefetchFinished(PrefetchFinisher finisher) {
+        if (prefetch == finisher) {
+            prefetch = null;
+        }
+        if (finisher.proxyCache == proxyCache) { // cache is shut down already otherwise
+            finishProcessRequest(false);
         }
     }
 
-    private synchronized void startProcessRequest() throws ProxyCacheException {
+    private synchronized HttpProxyCache startProcessRequest(boolean prefetch) throws ProxyCacheException {
+        cancelLinger();
         proxyCache = proxyCache == null ? newHttpProxyCache() : proxyCache;
+        if (!prefetch) {
+            proxyCache.setPriority(ProxyExecutor.PRIORITY_PLAYBACK);
+        } else if (clientsCount.get() == 0) {
+            proxyCache.setPriority(ProxyExecutor.PRIORITY_PREFETCH);
+        }
+        clientsCount.incrementAndGet();
+        return proxyCache;
     }
 
-    private synchronized void finishProcessRequest() {
+    private synchronized void finishProcessRequest(boolean linger) {
         if (clientsCount.decrementAndGet() <= 0) {
-            proxyCache.shutdown();
-            proxyCache = null;
+            if (linger && config.readerLinger > 0) {
+                linger();
+            } else {
+                shutdownProxyCache();
+            }
+        }
+    }
+
+    /**
+     * Keeps reader downloading for a while, so next request for the same url reuses it and its connection.
+     */
+    private void linger() {
+        final int generation = ++lingerGeneration;
+        lingerTask = config.executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HttpProxyCacheServerClients.this) {
+                    if (generation == lingerGeneration && clientsCount.get() <= 0) {
+                        lingerTask = null;
+                        shutdownProxyCache();
+                    }
+                }
+            }
+        }, config.readerLinger, ProxyExecutor.PRIORITY_MAINTENANCE);
+    }
+
+    private void cancelLinger() {
+        lingerGeneration++;
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+    }
+
+    private void shutdownProxyCache() {
+        if (proxyCache != null) {
+            HttpProxyCache stopped = proxyCache;
+            proxyCache = null; // callback of prefetch called on shutdown doesn't finish request again
+            stopped.shutdown();
         }
     }
 
@@ -64,13 +146,17 @@ final class HttpProxyCacheServerClients {
         listeners.remove(cacheListener);
     }
 
-    public void shutdown() {
+    public synchronized void shutdown() {
+        cancelLinger();
         listeners.clear();
+        config.progressDispatcher.cancel(uiCacheListener);
         if (proxyCache != null) {
-            proxyCache.registerCacheListener(null);
-            proxyCache.shutdown();
+            HttpProxyCache stopped = proxyCache;
             proxyCache = null;
+            stopped.registerCacheListener(null);
+            stopped.shutdown();
         }
+        prefetch = null;
         clientsCount.set(0);
     }
 
@@ -79,36 +165,59 @@ final class HttpProxyCacheServerClients {
     }
 
     private HttpProxyCache newHttpProxyCache() throws ProxyCacheException {
-        HttpUrlSource source = new HttpUrlSource(url, config.sourceInfoStorage, config.headerInjector, config.v, config.trustAllCerts);
-        FileCache cache = new FileCache(config.generateCacheFile(url), config.diskUsage);
-        HttpProxyCache httpProxyCache = new HttpProxyCache(source, cache);
+        HttpUrlSource source = new HttpUrlSource(url, config);
+        FileCache fileCache = new FileCache(config.generateCacheFile(url), config.diskUsage, config.stats, config.writeBufferSize);
+        HybridCache cache = new HybridCache(fileCache, config.headMemoryCache, config.stats);
+        HttpProxyCache httpProxyCache = new HttpProxyCache(source, cache, config.parallelDownloads, config.stats, config.executor, config.bandwidthScheduler);
         httpProxyCache.registerCacheListener(uiCacheListener);
         return httpProxyCache;
     }
 
-    private static final class UiListenerHandler extends Handler implements CacheListener {
+    /**
+     * Finishes prefetch request of these clients before passing result of prefetch to its callback.
+     */
+    private final class PrefetchFinisher implements ProxyCache.PrefetchCallback {
+
+        private final HttpProxyCache proxyCache;
+        private final ProxyCache.PrefetchCallback callback;
+
+        PrefetchFinisher(HttpProxyCache proxyCache, ProxyCache.PrefetchCallback callback) {
+            this.proxyCache = proxyCache;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onPrefetchFinished(ProxyCacheException error) {
+            HttpProxyCacheServerClients.this.onPrefetchFinished(this);
+            callback.onPrefetchFinished(error);
+        }
+    }
+
+    /**
+     * Delivers cache progress to listeners on main thread. Progress is coalesced: listeners get only the latest
+     * percents (and file) at most once per dispatcher's interval, the final 100% is never lost.
+     */
+    private static final class UiCacheListener implements CacheListener, CoalescingDispatcher.Target {
 
         private final String url;
         private final List<CacheListener> listeners;
+        private final CoalescingDispatcher dispatcher;
 
-        public UiListenerHandler(String url, List<CacheListener> listeners) {
-            super(Looper.getMainLooper());
+        public UiCacheListener(String url, List<CacheListener> listeners, CoalescingDispatcher dispatcher) {
             this.url = url;
             this.listeners = listeners;
+            this.dispatcher = dispatcher;
         }
 
         @Override
         public void onCacheAvailable(File file, String url, int percentsAvailable) {
-            Message message = obtainMessage();
-            message.arg1 = percentsAvailable;
-            message.obj = file;
-            sendMessage(message);
+            dispatcher.post(this, percentsAvailable, file);
         }
 
         @Override
-        public void handleMessage(Message msg) {
+        public void onDispatch(int percentsAvailable, Object file) {
             for (CacheListener cacheListener : listeners) {
-                cacheListener.onCacheAvailable((File) msg.obj, url, msg.arg1);
+                cacheListener.onCacheAvailable((File) file, url, percentsAvailable);
             }
         }
     }
@@ -2,6 +2,7 @@ package com.danikula.videocache;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
 import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
 import static java.net.HttpURLConnection.HTTP_OK;
@@ -23,13 +24,10 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
@@ -45,7 +43,10 @@ public class HttpUrlSource implements Source {
     private final HeaderInjector headerInjector;
     private final HostnameVerifier v;
     private final TrustManager[] trustAllCerts;
-    private SourceInfo sourceInfo;
+    private final SSLSocketFactory sslSocketFactory;
+    private final long redirectTtl;
+    private final RedirectTarget redirectTarget;
+    private volatile SourceInfo sourceInfo;
     private HttpURLConnection connection;
     private InputStream inputStream;
 
@@ -58,45 +59,172 @@ public class HttpUrlSource implements Source {
     }
 
     public HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector, HostnameVerifier v, TrustManager[] trustAllCerts) {
+        this(url, sourceInfoStorage, headerInjector, v, trustAllCerts,
+            TlsSocketFactory.getShared(v != null ? trustAllCerts : null), 0);
+    }
+
+    /**
+     * Creates source using socket factory of config, so all sources share TLS sessions and connections.
+     */
+    HttpUrlSource(String url, Config config) {
+        this(url, config.sourceInfoStorage, config.headerInjector, config.v, config.trustAllCerts, config.sslSocketFactory,
+            config.redirectTtl);
+    }
+
+    /**
+     * @param redirectTtl time final url of redirects is used instead of source's url, {@code 0} to follow
+     *                    redirects on every opening.
+     */
+    private HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector, HostnameVerifier v,
+                          TrustManager[] trustAllCerts, SSLSocketFactory sslSocketFactory, long redirectTtl) {
         this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
         this.headerInjector = checkNotNull(headerInjector);
         this.v = v;
         this.trustAllCerts = trustAllCerts;
+        this.sslSocketFactory = checkNotNull(sslSocketFactory);
+        this.redirectTtl = redirectTtl;
         SourceInfo sourceInfo = sourceInfoStorage.get(url);
         this.sourceInfo = sourceInfo != null ? sourceInfo :
             new SourceInfo(url, Integer.MIN_VALUE, ProxyCacheUtils.getSupposablyMime(url));
+        this.redirectTarget = new RedirectTarget(this.sourceInfo.redirectUrl, this.sourceInfo.redirectTime);
     }
 
+    /**
+     * Creates copy of source, e.g. for reading another range in parallel. Copy shares final url of redirects
+     * with original source, so redirect resolved (or invalidated) by any of them is used by all.
+     */
     public HttpUrlSource(HttpUrlSource source) {
         this.sourceInfo = source.sourceInfo;
         this.sourceInfoStorage = source.sourceInfoStorage;
         this.headerInjector = source.headerInjector;
         this.trustAllCerts = source.trustAllCerts;
+        this.sslSocketFactory = source.sslSocketFactory;
         this.v = source.v;
+        this.redirectTtl = source.redirectTtl;
+        this.redirectTarget = source.redirectTarget;
     }
 
+    /**
+     * Returns length of source. If it is not received yet, it is fetched by separate request,
+     * so prefer opening source first: length is taken from response of {@link #open(long)}.
+     */
     @Override
     public synchronized long length() throws ProxyCacheException {
-        if (sourceInfo.length == Integer.MIN_VALUE) {
+        if (!hasContentInfo()) {
             fetchContentInfo();
         }
         return sourceInfo.length;
     }
 
+    /**
+     * Checks if length and mime of source are received from server (now or before, if they are stored),
+     * so {@link #length()} and {@link #getMime()} don't make requests.
+     *
+     * @return {@code true} if content info is known.
+     */
+    public boolean hasContentInfo() {
+        return sourceInfo.length != Integer.MIN_VALUE;
+    }
+
+    /**
+     * Opens source for reading from passed offset. If offset is positive, download is resumed only if source
+     * is not changed: known validator is sent as If-Range header and validators of response are compared with
+     * known ones.
+     *
+     * @param offset offset in source data should be read from.
+     * @throws SourceChangedException if source is changed, so data cached before can't be used.
+     * @throws ProxyCacheException    if error occur while opening source.
+     */
     @Override
     public void open(long offset) throws ProxyCacheException {
         try {
-            connection = openConnection(offset, -1);
-            String mime = connection.getContentType();
+            String validator = offset > 0 ? sourceInfo.getRangeValidator() : null;
+            connection = openConnection(offset, -1, -1, validator);
+            int responseCode = connection.getResponseCode();
+            if (responseCode >= HTTP_BAD_REQUEST) {
+                throw new ProxyCacheException("Error opening " + sourceInfo.url + " with offset " + offset
+                    + ", response code: " + responseCode);
+            }
+            long length = readSourceAvailableBytes(connection, offset, responseCode);
+            SourceInfo receivedInfo = readSourceInfo(connection, length);
+            boolean rangeIgnored = offset > 0 && responseCode == HTTP_OK;
+            if (sourceInfo.isChanged(receivedInfo) || rangeIgnored && validator != null) {
+                // If-Range doesn't match, server returns whole new content
+                updateSourceInfo(receivedInfo);
+                throw new SourceChangedException("Source " + sourceInfo.url + " is changed since it was cached");
+            }
             inputStream = new BufferedInputStream(connection.getInputStream(), DEFAULT_BUFFER_SIZE);
-            long length = readSourceAvailableBytes(connection, offset, connection.getResponseCode());
-            this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime);
-            this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+            if (rangeIgnored) {
+                skipFully(inputStream, offset); // server doesn't support ranges, content must be read from the beginning
+            }
+            updateSourceInfo(receivedInfo);
         } catch (IOException e) {
             throw new ProxyCacheException("Error opening connection for " + sourceInfo.url + " with offset " + offset, e);
         }
     }
 
+    /**
+     * Opens source for reading only bytes range {@code [offset, end)}, e.g. for downloading one segment of source
+     * in parallel with other connections. Known info about source is not changed.
+     *
+     * @param offset first byte of range.
+     * @param end    last byte of range (exclusive).
+     * @throws SourceChangedException if source is changed since its info was received.
+     * @throws ProxyCacheException    if error occur while opening source or server doesn't support partial requests.
+     */
+    public void openRange(long offset, long end) throws ProxyCacheException {
+        try {
+            String validator = sourceInfo.getRangeValidator();
+            connection = openConnection(offset, end, -1, validator);
+            int responseCode = connection.getResponseCode();
+            if (responseCode >= HTTP_BAD_REQUEST) {
+                // error page has its own validators, it doesn't mean source is changed
+                throw new ProxyCacheException("Error opening " + sourceInfo.url + " with range " + offset + "-" + end
+                    + ", response code: " + responseCode);
+            }
+            if (sourceInfo.isChanged(readSourceInfo(connection, sourceInfo.length)) || responseCode == HTTP_OK && validator != null) {
+                throw new SourceChangedException("Source " + sourceInfo.url + " is changed since it was cached");
+            }
+            if (responseCode != HTTP_PARTIAL) {
+                throw new ProxyCacheException("Server doesn't support partial requests for " + sourceInfo.url
+                    + ", response code: " + responseCode);
+            }
+            inputStream = new BufferedInputStream(connection.getInputStream(), DEFAULT_BUFFER_SIZE);
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error opening connection for " + sourceInfo.url + " with range " + offset + "-" + end, e);
+        }
+    }
+
+    private SourceInfo readSourceInfo(HttpURLConnection connection, long length) {
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        return new SourceInfo(sourceInfo.url, length, connection.getContentType(), etag, lastModified);
+    }
+
+    private void updateSourceInfo(SourceInfo receivedInfo) {
+        boolean changed = sourceInfo.isChanged(receivedInfo);
+        // server may omit validators in some responses, known ones are kept until content is changed
+        String etag = receivedInfo.etag != null || changed ? receivedInfo.etag : sourceInfo.etag;
+        String lastModified = receivedInfo.lastModified != null || changed ? receivedInfo.lastModified : sourceInfo.lastModified;
+        String mime = !TextUtils.isEmpty(receivedInfo.mime) ? receivedInfo.mime : sourceInfo.mime;
+        RedirectTarget redirect = redirectTarget.snapshot();
+        this.sourceInfo = new SourceInfo(sourceInfo.url, receivedInfo.length, mime, etag, lastModified, redirect.url, redirect.time);
+        this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+    }
+
+    private void skipFully(InputStream inputStream, long count) throws IOException {
+        while (count > 0) {
+            long skipped = inputStream.skip(count);
+            if (skipped <= 0) {
+                if (inputStream.read() == -1) {
+                    throw new IOException("Source is shorter than offset " + count);
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
     private long readSourceAvailableBytes(HttpURLConnection connection, long offset, int responseCode) throws IOException {
         long contentLength = getContentLength(connection);
         return responseCode == HTTP_OK ? contentLength
@@ -141,16 +269,22 @@ public class HttpUrlSource implements Source {
         }
     }
 
+    /**
+     * Fetches length and mime by HEAD request, GET request is used if server doesn't support HEAD
+     * (e.g. url is signed for GET only).
+     */
     private void fetchContentInfo() throws ProxyCacheException {
         HttpURLConnection urlConnection = null;
         InputStream inputStream = null;
         try {
-            urlConnection = openConnection(0, 10000);
+            urlConnection = openConnection(0, -1, 10000, null, "HEAD");
+            if (urlConnection.getResponseCode() >= HTTP_BAD_REQUEST) {
+                urlConnection.disconnect();
+                urlConnection = openConnection(0, -1, 10000, null, "GET");
+            }
             long length = getContentLength(urlConnection);
-            String mime = urlConnection.getContentType();
             inputStream = urlConnection.getInputStream();
-            this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime);
-            this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+            updateSourceInfo(readSourceInfo(urlConnection, length));
         } catch (IOException e) {
             HttpProxyCacheDebuger.printfError("Error fetching info from " + sourceInfo.url, e);
         } finally {
@@ -161,41 +295,60 @@ public class HttpUrlSource implements Source {
         }
     }
 
-    private HttpURLConnection openConnection(long offset, int timeout) throws IOException, ProxyCacheException {
+    /**
+     * @param ifRange a validator to be sent as If-Range header or {@code null}.
+     */
+    private HttpURLConnection openConnection(long offset, long end, int timeout, String ifRange) throws IOException, ProxyCacheException {
+        return openConnection(offset, end, timeout, ifRange, "GET");
+    }
+
+    /**
+     * Opens connection to final url of redirects if it is known and fresh, so redirects are not followed
+     * on every seek. Cached url is forgotten if it responds with error, then redirects are followed again.
+     */
+    private HttpURLConnection openConnection(long offset, long end, int timeout, String ifRange, String method) throws IOException, ProxyCacheException {
+        String target = redirectTarget.get(redirectTtl);
+        if (target != null) {
+            try {
+                HttpURLConnection connection = followRedirects(target, offset, end, timeout, ifRange, method);
+                int code = connection.getResponseCode();
+                if (code < HTTP_BAD_REQUEST) {
+                    return connection;
+                }
+                connection.disconnect();
+                HttpProxyCacheDebuger.printfWarning("Redirect target of " + sourceInfo.url + " responded " + code + ", following redirects again");
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfWarning("Error opening redirect target of " + sourceInfo.url + ", following redirects again", e.getMessage());
+            }
+            redirectTarget.invalidate(target);
+        }
+        HttpURLConnection connection = followRedirects(sourceInfo.url, offset, end, timeout, ifRange, method);
+        if (redirectTtl > 0 && connection.getResponseCode() < HTTP_BAD_REQUEST) {
+            String finalUrl = connection.getURL().toString();
+            redirectTarget.set(finalUrl.equals(sourceInfo.url) ? null : finalUrl);
+        }
+        return connection;
+    }
+
+    private HttpURLConnection followRedirects(String url, long offset, long end, int timeout, String ifRange, String method) throws IOException, ProxyCacheException {
         HttpURLConnection connection;
         boolean redirected;
         int redirectCount = 0;
-        String url = this.sourceInfo.url;
         do {
-            if (url.startsWith("https") && v != null && trustAllCerts != null) {
-                connection = (HttpURLConnection) new URL(url).openConnection();
-                ((HttpsURLConnection) connection).setHostnameVerifier(v);
-                // Install the all-trusting trust manager
-                final SSLContext sslContext;
-                try {
-                    sslContext = SSLContext.getInstance("SSL");
-                    sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
-                    // Create an ssl socket factory with our all-trusting manager
-                    final SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
-                    ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            if (connection instanceof HttpsURLConnection) {
+                // shared factory, so sessions are resumed, it trusts custom certs if they are set
+                ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+                if (v != null && trustAllCerts != null) {
                     ((HttpsURLConnection) connection).setHostnameVerifier(v);
-                } catch (NoSuchAlgorithmException | KeyManagementException e) {
-                    e.printStackTrace();
                 }
-            } else {
-                connection = (HttpURLConnection) new URL(url).openConnection();
             }
+            connection.setRequestMethod(method);
             injectCustomHeaders(connection, url);
-            if (offset > 0) {
-                if (offset > Integer.MAX_VALUE) {
-                    String ofs = String.valueOf(offset);
-                    long ofr = offset;
-                    if (ofs.contains(".")) {
-                        ofr = Long.valueOf(ofs.substring(0, ofs.indexOf(".")));
-                    }
-                    connection.setRequestProperty("Range", "bytes=" + ofr + "-");
-                } else {
-                    connection.setRequestProperty("Range", "bytes=" + (int)offset + "-");
+            if (offset > 0 || end > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-" + (end > 0 ? String.valueOf(end - 1) : ""));
+                if (ifRange != null) {
+                    connection.setRequestProperty("If-Range", ifRange);
                 }
             }
             if (timeout > 0) {
@@ -205,7 +358,7 @@ public class HttpUrlSource implements Source {
             int code = connection.getResponseCode();
             redirected = code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP || code == HTTP_SEE_OTHER;
             if (redirected) {
-                url = connection.getHeaderField("Location");
+                url = new URL(connection.getURL(), connection.getHeaderField("Location")).toString();
                 redirectCount++;
                 connection.disconnect();
             }
@@ -216,6 +369,40 @@ public class HttpUrlSource implements Source {
         return connection;
     }
 
+    /**
+     * Final url of redirects shared by source and its copies.
+     */
+    private static final class RedirectTarget {
+
+        private String url;
+        private long time;
+
+        RedirectTarget(String url, long time) {
+            this.url = url;
+            this.time = time;
+        }
+
+        synchronized String get(long ttl) {
+            long age = System.currentTimeMillis() - time;
+            return url != null && age >= 0 && age < ttl ? url : null;
+        }
+
+        synchronized void set(String url) {
+            this.url = url;
+            this.time = url != null ? System.currentTimeMillis() : 0;
+        }
+
+        synchronized void invalidate(String staleUrl) {
+            if (staleUrl.equals(url)) {
+                set(null);
+            }
+        }
+
+        synchronized RedirectTarget snapshot() {
+            return new RedirectTarget(url, time);
+        }
+    }
+
     private void injectCustomHeaders(HttpURLConnection connection, String url) {
         Map<String, String> extraHeaders = headerInjector.addHeaders(url);
         if (extraHeaders == null) {
@@ -228,7 +415,7 @@ public class HttpUrlSource implements Source {
     }
 
     public synchronized String getMime() throws ProxyCacheException {
-        if (TextUtils.isEmpty(sourceInfo.mime)) {
+        if (TextUtils.isEmpty(sourceInfo.mime) && !hasContentInfo()) {
             fetchContentInfo();
         }
         return sourceInfo.mime;
@@ -238,6 +425,16 @@ public class HttpUrlSource implements Source {
         return sourceInfo.url;
     }
 
+    /**
+     * Returns url data is read from after following redirects, it is equal to {@link #getUrl()} if source is not opened.
+     *
+     * @return url of opened connection.
+     */
+    public String getResolvedUrl() {
+        HttpURLConnection connection = this.connection;
+        return connection != null ? connection.getURL().toString() : sourceInfo.url;
+    }
+
     @NonNull
     @Override
     public String toString() {
@@ -0,0 +1,160 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+import com.danikula.videocache.file.FileCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Two-tier {@link Cache}: first bytes of source are kept in {@link HeadMemoryCache} in front of {@link FileCache}.
+ * <p>
+ * Memory holds only data that is written to file too, so file remains the single source of truth and memory
+ * is just a faster copy of its beginning. Replaying recently played video starts from memory without reading flash.
+ * Head is filled while data is downloaded or, if file is already cached, from file once on opening.
+ */
+public class HybridCache implements SparseCache {
+
+    private final FileCache fileCache;
+    private final CacheStatsRecorder stats;
+    private final HeadMemoryCache.Head head;
+
+    /**
+     * Creates cache without memory tier.
+     */
+    public HybridCache(FileCache fileCache) throws ProxyCacheException {
+        this(fileCache, new HeadMemoryCache(0, 0), new CacheStatsRecorder());
+    }
+
+    public HybridCache(FileCache fileCache, HeadMemoryCache memoryCache, CacheStatsRecorder stats) throws ProxyCacheException {
+        this.fileCache = checkNotNull(fileCache);
+        this.stats = checkNotNull(stats);
+        this.head = memoryCache.obtain(headKey(fileCache.getFile()));
+        if (head != null) {
+            head.truncate(fileCache.available()); // file may be deleted or trimmed since head was filled
+            fillHeadFromFile();
+        }
+    }
+
+    @Override
+    public long available() throws ProxyCacheException {
+        return fileCache.available();
+    }
+
+    @Override
+    public long available(long offset) throws ProxyCacheException {
+        return fileCache.available(offset);
+    }
+
+    @Override
+    public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
+        if (head != null) {
+            int read = head.read(buffer, offset, length);
+            if (read > 0) {
+                stats.onMemoryRead(read);
+                return read;
+            }
+        }
+        return fileCache.read(buffer, offset, length);
+    }
+
+    /**
+     * Transfers cached bytes to passed channel, bytes kept in memory are written right from direct buffer.
+     *
+     * @see FileCache#transferTo(long, long, WritableByteChannel)
+     */
+    public long transferTo(long offset, long maxCount, WritableByteChannel target) throws ProxyCacheException, IOException {
+        if (head != null) {
+            long transferred = head.transferTo(offset, maxCount, target);
+            if (transferred > 0) {
+                stats.onMemoryRead(transferred);
+                return transferred;
+            }
+        }
+        return fileCache.transferTo(offset, maxCount, target);
+    }
+
+    @Override
+    public void append(byte[] data, int length) throws ProxyCacheException {
+        write(data, available(), length);
+    }
+
+    @Override
+    public void write(byte[] data, long offset, int length) throws ProxyCacheException {
+        fileCache.write(data, offset, length);
+        if (head != null && !head.isFull()) {
+            int headLength = head.length();
+            head.write(data, offset, length);
+            if (head.length() == headLength) {
+                return;
+            }
+            // data written by other readers may follow the head already
+            fillHeadFromFile();
+        }
+    }
+
+    /**
+     * Deletes all cached data of not completed cache.
+     *
+     * @see FileCache#discard()
+     */
+    public void discard() throws ProxyCacheException {
+        fileCache.discard();
+        if (head != null) {
+            head.truncate(0);
+        }
+    }
+
+    @Override
+    public void close() throws ProxyCacheException {
+        fileCache.close();
+    }
+
+    @Override
+    public void complete() throws ProxyCacheException {
+        fileCache.complete();
+        if (head != null) {
+            head.complete(fileCache.available());
+        }
+    }
+
+    @Override
+    public boolean isCompleted() {
+        return fileCache.isCompleted();
+    }
+
+    /**
+     * @return file currently used by file cache.
+     * @see FileCache#getFile()
+     */
+    public File getFile() {
+        return fileCache.getFile();
+    }
+
+    private void fillHeadFromFile() throws ProxyCacheException {
+        byte[] buffer = null;
+        while (!head.isFull()) {
+            long offset = head.length();
+            if (fileCache.available(offset) <= 0) {
+                break;
+            }
+            buffer = buffer == null ? new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE] : buffer;
+            int read = fileCache.read(buffer, offset, buffer.length);
+            if (read <= 0) {
+                break;
+            }
+            head.write(buffer, offset, read);
+        }
+        if (fileCache.isCompleted()) {
+            head.complete(fileCache.available());
+        }
+    }
+
+    private static String headKey(File file) {
+        // temp and completed files of the same source share head
+        String path = file.getAbsolutePath();
+        return path.endsWith(FileCache.TEMP_POSTFIX) ? path.substring(0, path.length() - FileCache.TEMP_POSTFIX.length()) : path;
+    }
+}
@@ -0,0 +1,130 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkAllNotNull;
+
+import java.util.concurrent.Future;
+
+/**
+ * Checks in background that {@link HttpProxyCacheServer} works, so callers get liveness state without pinging.
+ * <p>
+ * Alive server isn't pinged periodically, so idle proxy doesn't wake device up: result older than
+ * {@link #CHECK_INTERVAL_MS} is refreshed in background when it is requested. After failure server is pinged
+ * every {@link #RETRY_INTERVAL_MS} until it is alive again. If server stopped listening (e.g. server socket is closed
+ * by system), it is restarted before pinging.
+ */
+final class LivenessMonitor {
+
+    private static final long CHECK_INTERVAL_MS = 10 * 1000;
+    private static final long RETRY_INTERVAL_MS = 1000;
+
+    private final Pinger pinger;
+    private final Listener listener;
+    private final ProxyExecutor executor;
+    private volatile boolean alive;
+    private volatile long lastCheckTime;
+    private Future<?> nextCheck;
+    private long nextCheckTime;
+    private boolean shutdown;
+
+    LivenessMonitor(Pinger pinger, Listener listener, ProxyExecutor executor) {
+        checkAllNotNull(pinger, listener, executor);
+        this.pinger = pinger;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts checking, server is considered alive until first check is finished.
+     */
+    void start() {
+        alive = true;
+        schedule(0);
+    }
+
+    /**
+     * Returns result of last check without blocking. Outdated result is returned too, but new check is started.
+     *
+     * @return {@code true} if server was alive when it was checked last time.
+     */
+    boolean isAlive() {
+        if (System.currentTimeMillis() - lastCheckTime >= CHECK_INTERVAL_MS) {
+            schedule(0);
+        }
+        return alive;
+    }
+
+    /**
+     * Requests check as soon as possible, e.g. if server is suspected to be dead.
+     */
+    void checkNow() {
+        schedule(0);
+    }
+
+    synchronized void shutdown() {
+        shutdown = true;
+        if (nextCheck != null) {
+            nextCheck.cancel(false);
+        }
+    }
+
+    private synchronized void schedule(long delayMs) {
+        if (shutdown) {
+            return;
+        }
+        long checkTime = System.currentTimeMillis() + delayMs;
+        if (nextCheck != null && !nextCheck.isDone()) {
+            if (nextCheckTime <= checkTime) {
+                return;
+            }
+            nextCheck.cancel(false);
+        }
+        nextCheckTime = checkTime;
+        nextCheck = executor.schedule(new CheckRunnable(), delayMs, ProxyExecutor.PRIORITY_MAINTENANCE);
+    }
+
+    private void check() {
+        lastCheckTime = System.currentTimeMillis();
+        if (!listener.isListening()) {
+            HttpProxyCacheDebuger.printfWarning("Proxy server doesn't listen, restarting it");
+            listener.restart();
+        }
+        boolean pinged = pinger.ping(3, 70);   // 70+140+280=max~500ms
+        if (pinged != alive) {
+            HttpProxyCacheDebuger.printfLog("Proxy cache server is alive? " + pinged);
+        }
+        alive = pinged;
+        if (!pinged) {
+            schedule(RETRY_INTERVAL_MS);
+        }
+    }
+
+    private final class CheckRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            synchronized (LivenessMonitor.this) {
+                if (shutdown) {
+                    return;
+                }
+                nextCheck = null; // this check is running, next one may be scheduled
+            }
+            try {
+                check();
+            } catch (RuntimeException e) {
+                HttpProxyCacheDebuger.printfError("Error checking proxy server", e);
+                alive = false;
+                schedule(RETRY_INTERVAL_MS);
+            }
+        }
+    }
+
+    /**
+     * Server's listening state monitor is able to restore.
+     */
+    interface Listener {
+
+        boolean isListening();
+
+        void restart();
+    }
+}
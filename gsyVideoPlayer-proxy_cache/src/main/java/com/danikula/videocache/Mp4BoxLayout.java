@@ -0,0 +1,77 @@
+package com.danikula.videocache;
+
+/**
+ * Finds out layout of top-level boxes of MP4 file from its first bytes.
+ * <p>
+ * Files that are not prepared for streaming ("faststart") have {@code moov} box with sample tables after media data
+ * ({@code mdat}), so player requests the end of file right after the header before it can play anything.
+ */
+final class Mp4BoxLayout {
+
+    /**
+     * Count of first bytes enough to find boxes before media data: {@code ftyp} and usually {@code free} or
+     * small {@code uuid} boxes.
+     */
+    static final int PROBE_SIZE = 16 * 1024;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int LARGE_HEADER_SIZE = 16;
+
+    private Mp4BoxLayout() {
+    }
+
+    /**
+     * Returns offset of boxes following media data, if media data goes before {@code moov} box.
+     *
+     * @param head   first bytes of file.
+     * @param length count of bytes in {@code head}.
+     * @param size   size of whole file.
+     * @return offset of the first box after {@code mdat} or {@code -1} if file is not MP4, {@code moov} is in the head
+     * or media data is the last box.
+     */
+    static long findTrailingMoov(byte[] head, int length, long size) {
+        long offset = 0;
+        while (offset + HEADER_SIZE <= length) {
+            int position = (int) offset;
+            long boxSize = readUnsignedInt(head, position);
+            String type = readType(head, position + 4);
+            if (offset == 0 && !"ftyp".equals(type)) {
+                return -1; // not MP4
+            }
+            if (boxSize == 1) {
+                if (offset + LARGE_HEADER_SIZE > length) {
+                    return -1;
+                }
+                boxSize = readLong(head, position + HEADER_SIZE);
+            } else if (boxSize == 0) {
+                boxSize = size - offset; // box extends to the end of file
+            }
+            if (boxSize < HEADER_SIZE || offset + boxSize > size || "moov".equals(type)) {
+                return -1;
+            }
+            if ("mdat".equals(type)) {
+                long next = offset + boxSize;
+                return next > length && next < size ? next : -1;
+            }
+            offset += boxSize;
+        }
+        return -1;
+    }
+
+    private static long readUnsignedInt(byte[] data, int offset) {
+        return ((data[offset] & 0xffL) << 24) | ((data[offset + 1] & 0xffL) << 16) | ((data[offset + 2] & 0xffL) << 8)
+            | (data[offset + 3] & 0xffL);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (readUnsignedInt(data, offset) << 32) | readUnsignedInt(data, offset + 4);
+    }
+
+    private static String readType(byte[] data, int offset) {
+        char[] type = new char[4];
+        for (int i = 0; i < type.length; i++) {
+            type[i] = (char) (data[offset + i] & 0xff);
+        }
+        return new String(type);
+    }
+}
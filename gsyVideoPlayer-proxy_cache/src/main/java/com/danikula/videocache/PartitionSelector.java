@@ -0,0 +1,19 @@
+package com.danikula.videocache;
+
+/**
+ * Chooses cache partition for urls passed to {@link HttpProxyCacheServer} without explicit partition,
+ * e.g. to keep short feed clips and long-form videos in different directories with different limits.
+ *
+ * @see HttpProxyCacheServer#addPartition(String, java.io.File, com.danikula.videocache.file.DiskUsage)
+ */
+public interface PartitionSelector {
+
+    /**
+     * Returns partition url should be cached in.
+     *
+     * @param url an original url.
+     * @return name of partition or {@code null} to use default cache directory.
+     */
+    String select(String url);
+
+}
@@ -2,26 +2,22 @@ package com.danikula.videocache;
 
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeoutException;
 
 import static com.danikula.videocache.Preconditions.checkArgument;
 import static com.danikula.videocache.Preconditions.checkNotNull;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * Pings {@link HttpProxyCacheServer} to make sure it works.
@@ -34,7 +30,6 @@ class Pinger {
     private static final String PING_REQUEST = "ping";
     private static final String PING_RESPONSE = "ping ok";
 
-    private final ExecutorService pingExecutor = Executors.newSingleThreadExecutor();
     private final String host;
     private final int port;
 
@@ -51,14 +46,12 @@ class Pinger {
         int attempts = 0;
         while (attempts < maxAttempts) {
             try {
-                Future<Boolean> pingFuture = pingExecutor.submit(new PingCallable());
-                boolean pinged = pingFuture.get(timeout, MILLISECONDS);
-                if (pinged) {
+                if (pingServer(timeout)) {
                     return true;
                 }
-            } catch (TimeoutException e) {
+            } catch (SocketTimeoutException e) {
                 HttpProxyCacheDebuger.printfWarning("Error pinging server (attempt: " + attempts + ", timeout: " + timeout + "). ");
-            } catch (InterruptedException | ExecutionException e) {
+            } catch (IOException e) {
                 HttpProxyCacheDebuger.printfError("Error pinging server due to unexpected error", e);
             }
             attempts++;
@@ -91,35 +84,36 @@ class Pinger {
         out.write(PING_RESPONSE.getBytes());
     }
 
-    private boolean pingServer() throws ProxyCacheException {
-        String pingUrl = getPingUrl();
-        HttpUrlSource source = new HttpUrlSource(pingUrl, null, null);
-        try {
-            byte[] expectedResponse = PING_RESPONSE.getBytes();
-            source.open(0);
-            byte[] response = new byte[expectedResponse.length];
-            source.read(response);
-            boolean pingOk = Arrays.equals(expectedResponse, response);
-            HttpProxyCacheDebuger.printfLog("Ping response: `" + new String(response) + "`, pinged? " + pingOk);
+    /**
+     * Pings server on caller's thread, socket timeouts bound the time of ping instead of separate thread.
+     */
+    private boolean pingServer(int timeout) throws IOException {
+        byte[] expectedResponse = PING_RESPONSE.getBytes();
+        try (Socket socket = new Socket(Proxy.NO_PROXY)) {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+            OutputStream out = socket.getOutputStream();
+            out.write(String.format(Locale.US, "GET /%s HTTP/1.1\r\nHost: %s:%d\r\n\r\n", PING_REQUEST, host, port).getBytes());
+            out.flush();
+            String response = readResponse(socket.getInputStream(), expectedResponse.length + 64);
+            boolean pingOk = response.endsWith(PING_RESPONSE);
+            HttpProxyCacheDebuger.printfLog("Ping response: `" + response + "`, pinged? " + pingOk);
             return pingOk;
-        } catch (ProxyCacheException e) {
-            HttpProxyCacheDebuger.printfError("Error reading ping response", e);
-            return false;
-        } finally {
-            source.close();
         }
     }
 
-    private String getPingUrl() {
-        return String.format(Locale.US, "http://%s:%d/%s", host, port, PING_REQUEST);
+    private String readResponse(InputStream in, int maxLength) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[maxLength];
+        int read;
+        while (response.size() < maxLength && (read = in.read(buffer, 0, maxLength - response.size())) != -1) {
+            response.write(buffer, 0, read);
+        }
+        return new String(response.toByteArray());
     }
 
-    private class PingCallable implements Callable<Boolean> {
-
-        @Override
-        public Boolean call() throws Exception {
-            return pingServer();
-        }
+    private String getPingUrl() {
+        return String.format(Locale.US, "http://%s:%d/%s", host, port, PING_REQUEST);
     }
 
 }
@@ -0,0 +1,290 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded queue of urls whose first bytes should be cached before they are played, e.g. next items of feed.
+ * <p>
+ * Requests with higher priority are started first. Count of concurrent prefetches and sum of bytes they download
+ * are limited, while any url is played only single prefetch runs, so prefetching yields to playback.
+ * <p>
+ * Prefetch never blocks executor's thread: it is started by short task with {@link ProxyExecutor#PRIORITY_PREFETCH},
+ * source reader stops at requested size by itself and queue starts next prefetch from reader's completion callback.
+ */
+final class PrefetchQueue {
+
+    private final int maxConcurrent;
+    private final long maxBytesInFlight;
+    private final int maxQueued;
+    private final ProxyExecutor executor;
+    private final ClientsProvider clientsProvider;
+    private final List<Request> pending = new ArrayList<>();
+    private final Map<String, Request> running = new HashMap<>();
+    private long bytesInFlight;
+    private int playbackRequests;
+    private boolean shutdown;
+
+    /**
+     * @param maxConcurrent    max count of concurrently running prefetches.
+     * @param maxBytesInFlight max sum of bytes requested by running prefetches, single prefetch may exceed it.
+     * @param maxQueued        max count of waiting prefetches, those with the lowest priority are dropped.
+     */
+    PrefetchQueue(int maxConcurrent, long maxBytesInFlight, int maxQueued, ProxyExecutor executor, ClientsProvider clientsProvider) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.maxQueued = maxQueued;
+        this.executor = checkNotNull(executor);
+        this.clientsProvider = checkNotNull(clientsProvider);
+    }
+
+    /**
+     * Queues prefetch of url or changes priority and size of already queued one.
+     * Size of running prefetch is not changed.
+     *
+     * @param partition config of cache partition url is cached in.
+     */
+    synchronized void add(String url, Config partition, long bytes, int priority) {
+        if (shutdown || maxConcurrent <= 0) {
+            return;
+        }
+        String key = partition.clientsKey(url);
+        Request runningRequest = running.get(key);
+        if (runningRequest != null) {
+            runningRequest.priority = priority;
+            return;
+        }
+        Request request = findPending(key);
+        if (request == null) {
+            request = new Request(key, url, partition, bytes, priority);
+            pending.add(request);
+        } else {
+            request.bytes = bytes;
+            request.priority = priority;
+        }
+        trimPending();
+        schedule();
+    }
+
+    /**
+     * Removes url from queue and stops its prefetch if it is running.
+     *
+     * @return {@code true} if prefetch was queued or running.
+     */
+    boolean cancel(String url, Config partition) {
+        Request stopped;
+        synchronized (this) {
+            String key = partition.clientsKey(url);
+            Request request = findPending(key);
+            if (request != null) {
+                pending.remove(request);
+                return true;
+            }
+            stopped = running.get(key);
+            if (stopped == null) {
+                return false;
+            }
+            stop(stopped);
+            schedule();
+        }
+        cancelPrefetch(stopped);
+        return true;
+    }
+
+    void cancelAll() {
+        List<Request> stopped;
+        synchronized (this) {
+            pending.clear();
+            stopped = new ArrayList<>(running.values());
+            for (Request request : stopped) {
+                stop(request);
+            }
+        }
+        for (Request request : stopped) {
+            cancelPrefetch(request);
+        }
+    }
+
+    private void stop(Request request) {
+        request.cancelled = true;
+        remove(request); // cancelled prefetch finishes soon, url can be queued again right away
+    }
+
+    /**
+     * Stops reader of cancelled prefetch. Called without holding queue's lock: clients call back queue
+     * with their own lock held.
+     */
+    private void cancelPrefetch(Request request) {
+        HttpProxyCacheServerClients clients = request.clients;
+        if (clients != null) {
+            clients.cancelPrefetch(request.task);
+        }
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+        }
+        cancelAll();
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    synchronized void onPlaybackStarted() {
+        playbackRequests++;
+    }
+
+    synchronized void onPlaybackFinished() {
+        playbackRequests--;
+        schedule();
+    }
+
+    private Request findPending(String key) {
+        for (Request request : pending) {
+            if (request.key.equals(key)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private void trimPending() {
+        while (pending.size() > maxQueued) {
+            pending.remove(findHighest(true));
+        }
+    }
+
+    /**
+     * @param lowest {@code true} to find request with the lowest priority, the latest added of equal ones.
+     */
+    private Request findHighest(boolean lowest) {
+        Request found = null;
+        for (Request request : pending) {
+            boolean better = lowest ? found == null || request.priority <= found.priority
+                : found == null || request.priority > found.priority;
+            if (better) {
+                found = request;
+            }
+        }
+        return found;
+    }
+
+    private void schedule() {
+        int allowed = playbackRequests > 0 ? 1 : maxConcurrent;
+        while (!shutdown && !pending.isEmpty() && running.size() < allowed) {
+            Request request = findHighest(false);
+            boolean fits = running.isEmpty() || bytesInFlight + request.bytes <= maxBytesInFlight;
+            if (!fits) {
+                return;
+            }
+            pending.remove(request);
+            running.put(request.key, request);
+            bytesInFlight += request.bytes;
+            request.task = new PrefetchRunnable(request);
+            executor.submit(request.task, ProxyExecutor.PRIORITY_PREFETCH);
+        }
+    }
+
+    private void remove(Request request) {
+        if (running.get(request.key) == request) {
+            running.remove(request.key);
+            bytesInFlight -= request.bytes;
+        }
+    }
+
+    private synchronized void onFinished(Request request) {
+        remove(request);
+        schedule();
+    }
+
+    private synchronized boolean isCancelled(Request request) {
+        return request.cancelled;
+    }
+
+    private synchronized boolean attach(Request request, HttpProxyCacheServerClients clients) {
+        request.clients = clients;
+        return !request.cancelled;
+    }
+
+    /**
+     * Starts prefetch and returns right away, request is finished by {@link PrefetchRunnable#onPrefetchFinished}.
+     */
+    private void startPrefetch(Request request) {
+        HttpProxyCacheServerClients clients;
+        try {
+            clients = clientsProvider.getClients(request.url, request.partition);
+            if (!attach(request, clients)) {
+                onFinished(request);
+                return;
+            }
+            clients.prefetch(request.bytes, request.task);
+        } catch (ProxyCacheException e) {
+            HttpProxyCacheDebuger.printfWarning("Error prefetching " + request.url, e.getMessage());
+            onFinished(request);
+            return;
+        }
+        if (isCancelled(request)) {
+            clients.cancelPrefetch(request.task); // cancelled while prefetch was starting
+        }
+    }
+
+    /**
+     * Provides clients of url, so prefetch shares source reader with requests of players.
+     */
+    interface ClientsProvider {
+
+        HttpProxyCacheServerClients getClients(String url, Config partition) throws ProxyCacheException;
+    }
+
+    private static final class Request {
+
+        private final String key;
+        private final String url;
+        private final Config partition;
+        private long bytes;
+        private int priority;
+        private PrefetchRunnable task;
+        private volatile HttpProxyCacheServerClients clients;
+        private boolean cancelled;
+
+        Request(String key, String url, Config partition, long bytes, int priority) {
+            this.key = key;
+            this.url = url;
+            this.partition = partition;
+            this.bytes = bytes;
+            this.priority = priority;
+        }
+    }
+
+    private final class PrefetchRunnable implements Runnable, ProxyCache.PrefetchCallback {
+
+        private final Request request;
+
+        PrefetchRunnable(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            startPrefetch(request);
+        }
+
+        @Override
+        public void onPrefetchFinished(ProxyCacheException error) {
+            if (error != null && !isCancelled(request)) {
+                HttpProxyCacheDebuger.printfWarning("Error prefetching " + request.url, error.getMessage());
+            }
+            onFinished(request);
+        }
+    }
+}
@@ -3,6 +3,10 @@ package com.danikula.videocache;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -11,42 +15,273 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Can be used only for sources with persistent data (that doesn't change with time).
  * Method {@link #read(byte[], long, int)} will be blocked while fetching data from source.
  * Useful for streaming something with caching e.g. streaming video/audio etc.
+ * <p/>
+ * Source is read by single reader that fills gaps of cache. If client requests data far from reader's position
+ * (e.g. user seeks video) reader is moved to the first not cached byte client needs, so cache may contain several
+ * not connected ranges until all gaps are filled.
+ * <p/>
+ * Cache that isn't {@link SparseCache} can't keep not connected ranges, so it is filled from the beginning
+ * by main reader only, without repositioning and segment readers.
+ * <p/>
+ * If more than one reader is allowed, additional segment readers download {@link #SEGMENT_SIZE} segments ahead of
+ * main reader in parallel (see {@link #getSegmentSourceFactory()}). Main reader skips segments claimed by them.
+ * <p/>
+ * If source is MP4 with {@code moov} box after media data, its tail is downloaded by separate segment reader
+ * as soon as first bytes are cached, so player gets sample tables without waiting for main reader to reposition.
+ * <p/>
+ * Readers of source no client plays yet (see {@link #setPriority(int)}) are throttled by {@link BandwidthScheduler}.
+ * <p/>
+ * First bytes of source can be cached without blocking by {@link #prefetch(long, PrefetchCallback)}: reader of source
+ * no client plays stops at prefetch limit by itself and callback is called once prefetched data is cached.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 class ProxyCache {
 
     private static final int MAX_READ_SOURCE_ATTEMPTS = 1;
+    // waiters are woken up by reader, timeout is just a safety net
+    private static final long MAX_WAIT_TIMEOUT = 1000;
+    // client waiting for data in this window ahead of reader will get it soon without reconnection
+    private static final long REPOSITION_WINDOW = 512 * 1024;
+    // reader always reads some data after (re)opening source, so concurrent clients can't make it reconnect endlessly
+    private static final long MIN_READ_BEFORE_REPOSITION = 256 * 1024;
+    // cached range ahead of reader that is longer than this is skipped by reopening source after it
+    private static final long MIN_SKIPPED_RANGE = 256 * 1024;
+    // size of range downloaded by single segment reader, source shorter than two segments is read by main reader only
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+    // longer tail after media data is unlikely to be just moov box, it is left for main reader
+    private static final long MAX_TAIL_SIZE = 16 * 1024 * 1024;
 
     private final Source source;
-    private final Cache cache;
-    private final Object wc = new Object();
+    private final SparseCache cache;
+    private final boolean sparse;
+    private final CacheWatermark watermark;
     private final Object stopLock = new Object();
+    private final Object sourceInfoLock = new Object();
+    private final Object prefetchLock = new Object();
     private final AtomicInteger readSourceErrorsCount;
-    private volatile Thread sourceReaderThread;
+    private final int maxReaders;
+    private final CacheStatsRecorder stats;
+    private final ProxyExecutor executor;
+    private final BandwidthScheduler bandwidthScheduler;
+    private final List<Segment> claimedSegments = new ArrayList<>();
+    private final List<Future<?>> segmentReaderTasks = new CopyOnWriteArrayList<>();
+    private final AtomicInteger segmentReadersCount = new AtomicInteger();
+    private volatile Future<?> sourceReaderTask;
+    private volatile Future<?> tailReaderTask;
+    private volatile int priority = ProxyExecutor.PRIORITY_PLAYBACK;
+    private volatile boolean readingInProgress;
     private volatile boolean stopped;
     private volatile int percentsAvailable = -1;
+    private volatile long sourceLength = -1;
+    private volatile long readerOffset = -1;
+    private volatile long repositionOffset = -1;
+    private volatile boolean layoutProbed;
+    private volatile long prefetchLimit = -1;
+    private PrefetchCallback prefetchCallback;
 
     public ProxyCache(Source source, Cache cache) {
+        this(source, cache, 1);
+    }
+
+    /**
+     * @param maxReaders max count of concurrent connections to source, segment readers are used if it is more than 1.
+     */
+    public ProxyCache(Source source, Cache cache, int maxReaders) {
+        this(source, cache, maxReaders, new CacheStatsRecorder());
+    }
+
+    /**
+     * @param maxReaders max count of concurrent connections to source, segment readers are used if it is more than 1.
+     * @param stats      a recorder of downloaded bytes.
+     */
+    public ProxyCache(Source source, Cache cache, int maxReaders, CacheStatsRecorder stats) {
+        this(source, cache, maxReaders, stats, ProxyExecutor.getDefault());
+    }
+
+    /**
+     * @param maxReaders max count of concurrent connections to source, segment readers are used if it is more than 1.
+     * @param stats      a recorder of downloaded bytes.
+     * @param executor   an executor source readers are run on.
+     */
+    public ProxyCache(Source source, Cache cache, int maxReaders, CacheStatsRecorder stats, ProxyExecutor executor) {
+        this(source, cache, maxReaders, stats, executor, BandwidthScheduler.unlimited());
+    }
+
+    /**
+     * @param maxReaders         max count of concurrent connections to source, segment readers are used if it is more than 1.
+     * @param stats              a recorder of downloaded bytes.
+     * @param executor           an executor source readers are run on.
+     * @param bandwidthScheduler a scheduler throttling readers of source nobody plays.
+     */
+    public ProxyCache(Source source, Cache cache, int maxReaders, CacheStatsRecorder stats, ProxyExecutor executor, BandwidthScheduler bandwidthScheduler) {
+        Preconditions.checkArgument(maxReaders >= 1, "Readers count must be positive");
+        this.maxReaders = maxReaders;
+        this.stats = checkNotNull(stats);
+        this.executor = checkNotNull(executor);
+        this.bandwidthScheduler = checkNotNull(bandwidthScheduler);
         this.source = checkNotNull(source);
-        this.cache = checkNotNull(cache);
+        this.sparse = cache instanceof SparseCache;
+        this.cache = sparse ? (SparseCache) cache : new SequentialCache(checkNotNull(cache));
+        this.watermark = new CacheWatermark(this.cache);
         this.readSourceErrorsCount = new AtomicInteger();
     }
 
     public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
         ProxyCacheUtils.assertBuffer(buffer, offset, length);
 
-        while (!cache.isCompleted() && cache.available() < (offset + length) && !stopped) {
-            readSourceAsync();
-            waitForSourceData();
+        waitForCacheData(offset, length);
+        return cache.read(buffer, offset, length);
+    }
+
+    /**
+     * Blocks until cache contains {@code length} bytes starting from passed offset, or all bytes till the end of source.
+     *
+     * @param offset an offset data is needed from.
+     * @param length count of needed bytes.
+     * @throws ProxyCacheException if error occur while reading source or waiting is interrupted.
+     */
+    protected void waitForCacheData(long offset, int length) throws ProxyCacheException {
+        while (!cache.isCompleted() && !isAvailable(offset, length) && !stopped) {
+            readSourceAsync(watermark.availableUpTo(offset));
+            waitForSourceData(offset, length);
             checkReadSourceErrorsCount();
         }
-        int read = cache.read(buffer, offset, length);
         if (cache.isCompleted() && percentsAvailable != 100) {
             percentsAvailable = 100;
             onCachePercentsAvailableChanged(100);
         }
-        return read;
+    }
+
+    /**
+     * Starts caching first bytes of source without blocking. Reader of source no client plays stops at
+     * {@code length} by itself, readers of played source go on as usual.
+     * <p>
+     * Callback is called once: with {@code null} when data is cached, with error if reading source is failed,
+     * prefetch is cancelled or cache is shut down. It is called on reader's thread, or on caller's one
+     * if data is cached already.
+     *
+     * @param length   count of first bytes to be cached, source shorter than that is cached entirely.
+     * @param callback a callback of prefetch, not finished callback of previous prefetch is called with error.
+     */
+    public void prefetch(long length, PrefetchCallback callback) {
+        checkNotNull(callback);
+        PrefetchCallback previous;
+        synchronized (prefetchLock) {
+            previous = prefetchCallback;
+            prefetchCallback = callback;
+            prefetchLimit = length;
+        }
+        if (previous != null) {
+            previous.onPrefetchFinished(new ProxyCacheException("Prefetch is replaced by another one"));
+        }
+        continuePrefetch();
+    }
+
+    /**
+     * Cancels prefetch started with passed callback, if it isn't finished yet. Callback is called with error.
+     *
+     * @param callback a callback prefetch is started with.
+     */
+    public void cancelPrefetch(PrefetchCallback callback) {
+        finishPrefetch(callback, new ProxyCacheException("Prefetch is cancelled"));
+    }
+
+    /**
+     * Finishes prefetch if its data is cached or can't be cached anymore, otherwise makes sure reader downloads it.
+     */
+    private void continuePrefetch() {
+        PrefetchCallback callback;
+        synchronized (prefetchLock) {
+            callback = prefetchCallback;
+        }
+        if (callback == null) {
+            return;
+        }
+        ProxyCacheException error = null;
+        try {
+            long offset = watermark.availableUpTo(0);
+            long knownLength = sourceLength;
+            boolean prefetched = cache.isCompleted() || offset >= prefetchLimit || knownLength >= 0 && offset >= knownLength;
+            if (!prefetched && stopped) {
+                error = new ProxyCacheException("Prefetch of " + source + " is stopped");
+            } else if (!prefetched) {
+                checkReadSourceErrorsCount();
+                readSourceAsync(offset);
+                return;
+            }
+        } catch (ProxyCacheException e) {
+            error = e;
+        }
+        finishPrefetch(callback, error);
+    }
+
+    private void finishPrefetch(PrefetchCallback callback, ProxyCacheException error) {
+        synchronized (prefetchLock) {
+            if (prefetchCallback != callback) {
+                return; // finished already
+            }
+            prefetchCallback = null;
+        }
+        callback.onPrefetchFinished(error);
+    }
+
+    /**
+     * Reader of source no client plays stops at prefetch limit, data after it isn't needed yet.
+     */
+    private boolean isPrefetchLimitReached(long offset) {
+        long limit = prefetchLimit;
+        return limit >= 0 && offset >= limit && isBackground();
+    }
+
+    /**
+     * Blocks until info about source (e.g. its length) is received. Info is received with response of source
+     * opened by reader for passed offset, so the first byte of data doesn't need separate request for info.
+     *
+     * @param offset an offset data is needed from.
+     * @throws ProxyCacheException if error occur while reading source or waiting is interrupted.
+     */
+    protected void waitForSourceInfo(long offset) throws ProxyCacheException {
+        synchronized (sourceInfoLock) {
+            while (!isSourceInfoReceived() && !cache.isCompleted() && !stopped) {
+                readSourceAsync(watermark.availableUpTo(offset));
+                try {
+                    sourceInfoLock.wait(MAX_WAIT_TIMEOUT);
+                } catch (InterruptedException e) {
+                    throw new ProxyCacheException("Waiting source info is interrupted!", e);
+                }
+                checkReadSourceErrorsCount();
+            }
+        }
+    }
+
+    /**
+     * Checks if info about source is known without accessing source, e.g. received from server or storage.
+     * Source's length is requested by reader only if this method returns {@code true},
+     * otherwise it is taken from source after opening.
+     *
+     * @return {@code true} if {@link Source#length()} doesn't make separate request.
+     */
+    protected boolean isSourceInfoReceived() {
+        return true;
+    }
+
+    /**
+     * Returns offset of first not cached byte starting from passed offset. Never blocks.
+     *
+     * @param offset an offset to check cache from.
+     * @return end (exclusive) of continuously cached data started at offset.
+     * @throws ProxyCacheException if error occur while accessing cache.
+     */
+    public long availableUpTo(long offset) throws ProxyCacheException {
+        return watermark.availableUpTo(offset);
+    }
+
+    private boolean isAvailable(long offset, int length) throws ProxyCacheException {
+        long available = cache.available(offset);
+        long knownLength = sourceLength;
+        boolean tailAvailable = knownLength >= 0 && offset + available >= knownLength;
+        return available >= length || tailAvailable;
     }
 
     private void checkReadSourceErrorsCount() throws ProxyCacheException {
@@ -57,43 +292,101 @@ class ProxyCache {
         }
     }
 
+    /**
+     * Sets priority of reading source, e.g. {@link ProxyExecutor#PRIORITY_PREFETCH} for source no client plays yet.
+     * Readers of source with priority below {@link ProxyExecutor#PRIORITY_PLAYBACK} are throttled by
+     * {@link BandwidthScheduler} while other urls are played and wait for free thread behind played ones.
+     * Segment readers never have priority above {@link ProxyExecutor#PRIORITY_SEGMENT}.
+     *
+     * @param priority priority of source reading.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+        synchronized (this) { // reader may be being submitted with previous priority
+            raiseReaderPriority(sourceReaderTask, priority);
+            raiseReaderPriority(tailReaderTask, priority);
+        }
+    }
+
+    private void raiseReaderPriority(Future<?> readerTask, int priority) {
+        if (readerTask != null) {
+            executor.raiseReaderPriority(readerTask, priority);
+        }
+    }
+
     public void shutdown() {
         synchronized (stopLock) {
             try {
                 stopped = true;
-                if (sourceReaderThread != null) {
-                    sourceReaderThread.interrupt();
+                if (sourceReaderTask != null) {
+                    sourceReaderTask.cancel(true);
+                }
+                for (Future<?> segmentReaderTask : segmentReaderTasks) {
+                    segmentReaderTask.cancel(true);
                 }
                 cache.close();
+                watermark.signalAll();
             } catch (ProxyCacheException e) {
                 onError(e);
             }
         }
+        continuePrefetch(); // callback of not finished prefetch gets error
     }
 
-    private synchronized void readSourceAsync() throws ProxyCacheException {
-        boolean readingInProgress = sourceReaderThread != null && sourceReaderThread.getState() != Thread.State.TERMINATED;
-        if (!stopped && !cache.isCompleted() && !readingInProgress) {
-            sourceReaderThread = new Thread(new SourceReaderRunnable(), "Source reader for " + source);
-            sourceReaderThread.start();
+    private synchronized void readSourceAsync(long neededOffset) throws ProxyCacheException {
+        if (stopped || cache.isCompleted() || isClaimed(neededOffset)) {
+            return; // claimed data will be downloaded by segment reader
+        }
+        if (!readingInProgress) {
+            readingInProgress = true;
+            readerOffset = neededOffset;
+            repositionOffset = -1;
+            sourceReaderTask = executor.submitReader(new SourceReaderRunnable(neededOffset), priority);
+        } else if (sparse && isFarFromReader(neededOffset)) {
+            repositionOffset = neededOffset;
         }
     }
 
-    private void waitForSourceData() throws ProxyCacheException {
-        synchronized (wc) {
-            try {
-                wc.wait(1000);
-            } catch (InterruptedException e) {
-                throw new ProxyCacheException("Waiting source data is interrupted!", e);
+    private long neededEnd(long offset, int length) {
+        long knownLength = sourceLength;
+        return knownLength >= 0 ? Math.min(offset + length, knownLength) : offset + length;
+    }
+
+    private boolean isFarFromReader(long neededOffset) {
+        long position = readerOffset;
+        return neededOffset < position || neededOffset > position + REPOSITION_WINDOW;
+    }
+
+    private void waitForSourceData(long offset, int length) throws ProxyCacheException {
+        CacheWatermark.Waiter waiter = watermark.register(offset, neededEnd(offset, length));
+        try {
+            // data may be written between previous check and registration
+            boolean reading = readingInProgress || segmentReadersCount.get() > 0;
+            if (!isAvailable(offset, length) && !stopped && reading) {
+                waiter.await(MAX_WAIT_TIMEOUT);
             }
+        } catch (InterruptedException e) {
+            throw new ProxyCacheException("Waiting source data is interrupted!", e);
+        } finally {
+            watermark.unregister(waiter);
         }
     }
 
-    private void notifyNewCacheDataAvailable(long cacheAvailable, long sourceAvailable) {
+    private void notifyNewCacheDataAvailable(long cacheAvailable, long sourceAvailable) throws ProxyCacheException {
         onCacheAvailable(cacheAvailable, sourceAvailable);
+        watermark.onDataWritten();
+    }
 
-        synchronized (wc) {
-            wc.notifyAll();
+    private void notifyReadingFinished(long cacheAvailable, long sourceAvailable) {
+        readingInProgress = false;
+        onCacheAvailable(cacheAvailable, sourceAvailable);
+        watermark.signalAll();
+        notifySourceInfoWaiters();
+    }
+
+    private void notifySourceInfoWaiters() {
+        synchronized (sourceInfoLock) {
+            sourceInfoLock.notifyAll();
         }
     }
 
@@ -111,50 +404,357 @@ class ProxyCache {
     protected void onCachePercentsAvailableChanged(int percentsAvailable) {
     }
 
-    private void readSource() {
+    private void readSource(long startOffset) {
         long sourceAvailable = -1;
-        long offset = 0;
+        long offset = startOffset;
         try {
-            offset = cache.available();
-            source.open(offset);
-            sourceAvailable = source.length();
-            byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
-            int readBytes;
-            while ((readBytes = source.read(buffer)) != -1) {
-                synchronized (stopLock) {
-                    if (isStopped()) {
-                        return;
+            // unknown length is taken from response of opened source, not requested separately
+            sourceAvailable = sourceLength >= 0 ? sourceLength : isSourceInfoReceived() ? source.length() : -1;
+            sourceLength = sourceAvailable;
+            while (!isStopped() && !cache.isCompleted() && !isPrefetchLimitReached(offset)) {
+                offset = skipAvailable(offset);
+                if (sourceAvailable >= 0 && offset >= sourceAvailable) {
+                    // tail is cached, fill gaps from the beginning
+                    offset = skipAvailable(0);
+                    if (offset >= sourceAvailable) {
+                        break; // the rest is cached or being downloaded by segment readers
                     }
-                    cache.append(buffer, readBytes);
                 }
-                offset += readBytes;
-                notifyNewCacheDataAvailable(offset, sourceAvailable);
+                readerOffset = offset;
+                source.open(offset);
+                sourceAvailable = source.length();
+                sourceLength = sourceAvailable;
+                notifySourceInfoWaiters();
+                probeLayout(sourceAvailable);
+                startSegmentReaders(sourceAvailable);
+                long rangeEnd = readSourceRange(offset, sourceAvailable);
+                closeSource();
+                if (rangeEnd == offset && sourceAvailable >= 0 && !isStopped() && !cache.isCompleted()) {
+                    // reopening source at the same offset would give the same empty response again
+                    throw new ProxyCacheException("Source " + source + " ended at " + offset + ", expected " + sourceAvailable);
+                }
+                offset = rangeEnd;
+                if (repositionOffset >= 0) {
+                    offset = repositionOffset;
+                    repositionOffset = -1;
+                } else if (sourceAvailable < 0) {
+                    break; // there is no way to find out gaps at the end of source with unknown length
+                }
             }
-            tryComplete();
-            onSourceRead();
+            if (isStopped()) {
+                return;
+            }
+            tryComplete(sourceAvailable);
+            if (cache.isCompleted() || sourceAvailable < 0) {
+                onSourceRead();
+            }
+        } catch (SourceChangedException e) {
+            // clients reading old data get error, next requests are served with new data
+            readSourceErrorsCount.incrementAndGet();
+            onError(e);
+            discardCache();
+            offset = 0;
+            sourceAvailable = -1;
         } catch (Throwable e) {
             readSourceErrorsCount.incrementAndGet();
             onError(e);
         } finally {
             closeSource();
+            notifyReadingFinished(offset, sourceAvailable);
+            continuePrefetch(); // restarts reader if prefetched data isn't cached, e.g. after error
+        }
+    }
+
+    private void discardCache() {
+        synchronized (stopLock) {
+            try {
+                if (!isStopped() && !cache.isCompleted()) {
+                    onSourceChanged();
+                    sourceLength = -1;
+                    percentsAvailable = -1;
+                }
+            } catch (ProxyCacheException e) {
+                onError(new ProxyCacheException("Error discarding cache of changed source " + source, e));
+            }
+        }
+    }
+
+    /**
+     * Reads opened source to the cache until source end, large cached range or reposition request.
+     *
+     * @return offset reading is stopped at.
+     */
+    private long readSourceRange(long offset, long sourceAvailable) throws ProxyCacheException {
+        long startOffset = offset;
+        byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+        int readBytes;
+        while ((readBytes = source.read(buffer)) != -1) {
+            synchronized (stopLock) {
+                if (isStopped() || cache.isCompleted()) {
+                    return offset;
+                }
+                stats.onSourceRead(readBytes, offset > cache.available());
+                cache.write(buffer, offset, readBytes);
+                completeIfFilled(sourceAvailable);
+            }
+            offset += readBytes;
+            readerOffset = offset;
             notifyNewCacheDataAvailable(offset, sourceAvailable);
+            probeLayout(sourceAvailable);
+            bandwidthScheduler.onDownloaded(readBytes, isBackground());
+            if (prefetchLimit >= 0 && offset >= prefetchLimit) {
+                continuePrefetch();
+            }
+            if (cache.isCompleted() || isClaimed(offset) || isPrefetchLimitReached(offset)) {
+                return offset;
+            }
+            boolean canReposition = offset - startOffset >= MIN_READ_BEFORE_REPOSITION;
+            if (canReposition && (repositionOffset >= 0 || cache.available(offset) >= MIN_SKIPPED_RANGE)) {
+                return offset;
+            }
+        }
+        if (sourceAvailable < 0) {
+            sourceLength = offset;
+        }
+        return offset;
+    }
+
+    private void completeIfFilled(long sourceAvailable) throws ProxyCacheException {
+        if (cache.available() == sourceAvailable) {
+            // complete before notifying, client that got last bytes may finish and stop readers
+            cache.complete();
+        }
+    }
+
+    /**
+     * Returns first byte starting from offset that is neither cached nor claimed by segment reader.
+     */
+    private long skipAvailable(long offset) throws ProxyCacheException {
+        if (!sparse) {
+            return cache.available(); // the only place data can be written at
+        }
+        long skipped;
+        do {
+            skipped = offset;
+            offset += cache.available(offset);
+            offset = skipClaimed(offset);
+        } while (offset != skipped);
+        return offset;
+    }
+
+    private long skipClaimed(long offset) {
+        synchronized (claimedSegments) {
+            for (Segment segment : claimedSegments) {
+                if (segment.start <= offset && offset < segment.end) {
+                    return segment.end;
+                }
+            }
+            return offset;
+        }
+    }
+
+    private boolean isClaimed(long offset) {
+        return skipClaimed(offset) != offset;
+    }
+
+    /**
+     * Checks layout of source once its first bytes are cached and starts reading of {@code moov} box
+     * if it is at the end of MP4 file.
+     */
+    private void probeLayout(long sourceAvailable) throws ProxyCacheException {
+        if (!sparse || layoutProbed || sourceAvailable < 0 || getSegmentSourceFactory() == null) {
+            return;
+        }
+        int headLength = (int) Math.min(Mp4BoxLayout.PROBE_SIZE, sourceAvailable);
+        if (cache.available(0) < headLength) {
+            return;
+        }
+        layoutProbed = true;
+        byte[] head = new byte[headLength];
+        byte[] buffer = new byte[headLength];
+        int offset = 0;
+        int readBytes;
+        while (offset < headLength && (readBytes = cache.read(buffer, offset, headLength - offset)) > 0) {
+            System.arraycopy(buffer, 0, head, offset, readBytes);
+            offset += readBytes;
+        }
+        long tailOffset = Mp4BoxLayout.findTrailingMoov(head, offset, sourceAvailable);
+        if (tailOffset >= 0 && sourceAvailable - tailOffset <= MAX_TAIL_SIZE) {
+            startTailReader(tailOffset, sourceAvailable);
+        }
+    }
+
+    private void startTailReader(long tailOffset, long sourceAvailable) throws ProxyCacheException {
+        Segment segment;
+        synchronized (claimedSegments) {
+            long offset = skipAvailable(tailOffset);
+            if (offset >= sourceAvailable || isStopped()) {
+                return; // tail is cached or being downloaded already
+            }
+            segment = new Segment(offset, skipToClaimed(offset, sourceAvailable));
+            claimedSegments.add(segment);
+        }
+        HttpProxyCacheDebuger.printfLog("Reading moov box at the end of " + source + " from " + segment.start);
+        segmentReadersCount.incrementAndGet();
+        // tail is claimed already, so it is read with priority of main reader: player can't get it otherwise
+        synchronized (this) {
+            tailReaderTask = executor.submitReader(new TailReaderRunnable(segment), priority);
+            segmentReaderTasks.add(tailReaderTask);
+        }
+    }
+
+    private void startSegmentReaders(long sourceAvailable) {
+        if (!sparse || maxReaders <= 1 || sourceAvailable < 2 * SEGMENT_SIZE || getSegmentSourceFactory() == null) {
+            return;
+        }
+        for (Future<?> segmentReaderTask : segmentReaderTasks) {
+            if (segmentReaderTask.isDone()) {
+                segmentReaderTasks.remove(segmentReaderTask);
+            }
+        }
+        while (segmentReadersCount.get() < maxReaders - 1 && !isStopped()) {
+            segmentReadersCount.incrementAndGet();
+            int segmentPriority = Math.min(priority, ProxyExecutor.PRIORITY_SEGMENT);
+            segmentReaderTasks.add(executor.submitReader(new SegmentReaderRunnable(), segmentPriority));
+        }
+    }
+
+    /**
+     * Claims next segment ahead of main reader that is not cached and not claimed by other segment reader yet.
+     * First segment after main reader's position is left for main reader.
+     *
+     * @return claimed segment or {@code null} if there is nothing to download ahead of main reader.
+     */
+    private Segment claimNextSegment() throws ProxyCacheException {
+        synchronized (claimedSegments) {
+            long length = sourceLength;
+            long offset = skipAvailable(Math.max(readerOffset, 0) + SEGMENT_SIZE);
+            if (length < 0 || offset >= length) {
+                return null;
+            }
+            Segment segment = new Segment(offset, skipToClaimed(offset, Math.min(offset + SEGMENT_SIZE, length)));
+            claimedSegments.add(segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Returns start of the first claimed segment in {@code (offset, end)} or {@code end} if there is no such segment.
+     */
+    private long skipToClaimed(long offset, long end) {
+        for (Segment segment : claimedSegments) {
+            if (segment.start > offset) {
+                end = Math.min(end, segment.start);
+            }
+        }
+        return end;
+    }
+
+    private void releaseSegment(Segment segment) {
+        synchronized (claimedSegments) {
+            claimedSegments.remove(segment);
+        }
+        watermark.signalAll(); // clients waiting for not downloaded part of segment should wake up main reader
+        continuePrefetch(); // segment may complete prefetched data or leave its rest to main reader
+    }
+
+    private void readSegments() {
+        try {
+            Segment segment;
+            while (!isStopped() && !cache.isCompleted() && (segment = claimNextSegment()) != null) {
+                try {
+                    readSegment(segment);
+                } finally {
+                    releaseSegment(segment);
+                }
+            }
+        } catch (Throwable e) {
+            // main reader will download the rest, so it is not counted as reading error
+            onError(e);
+        } finally {
+            segmentReadersCount.decrementAndGet();
+            watermark.signalAll();
         }
     }
 
+    private void readTail(Segment segment) {
+        try {
+            readSegment(segment);
+        } catch (Throwable e) {
+            // main reader will download the rest when player requests it
+            onError(e);
+        } finally {
+            releaseSegment(segment);
+            segmentReadersCount.decrementAndGet();
+        }
+    }
+
+    private void readSegment(Segment segment) throws ProxyCacheException {
+        SegmentSourceFactory segmentSourceFactory = getSegmentSourceFactory();
+        if (segmentSourceFactory == null) {
+            throw new ProxyCacheException("Segment reading is not supported by " + getClass().getSimpleName());
+        }
+        Source segmentSource = segmentSourceFactory.open(segment.start, segment.end);
+        try {
+            long offset = segment.start;
+            byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+            int readBytes;
+            while (offset < segment.end && (readBytes = segmentSource.read(buffer)) != -1) {
+                int length = (int) Math.min(readBytes, segment.end - offset);
+                synchronized (stopLock) {
+                    if (isStopped() || cache.isCompleted()) {
+                        return;
+                    }
+                    stats.onSourceRead(length, false);
+                    cache.write(buffer, offset, length);
+                    completeIfFilled(sourceLength);
+                }
+                offset += length;
+                watermark.onDataWritten();
+                bandwidthScheduler.onDownloaded(length, isBackground());
+            }
+        } finally {
+            segmentSource.close();
+        }
+    }
+
+    /**
+     * Returns factory of sources for segment readers. Without factory source is read by main reader only,
+     * regardless of max count of readers, and {@code moov} box at the end of MP4 file isn't read up front.
+     *
+     * @return factory of segment sources or {@code null} if segment reading isn't supported.
+     */
+    protected SegmentSourceFactory getSegmentSourceFactory() {
+        return null;
+    }
+
+    /**
+     * Called when source's content is changed since data was cached (see {@link SourceChangedException}).
+     * Cached data must be discarded, so it is not mixed with new content.
+     *
+     * @throws ProxyCacheException if error occur while discarding data.
+     */
+    protected void onSourceChanged() throws ProxyCacheException {
+    }
+
     private void onSourceRead() {
         // guaranteed notify listeners after source read and cache completed
         percentsAvailable = 100;
         onCachePercentsAvailableChanged(percentsAvailable);
     }
 
-    private void tryComplete() throws ProxyCacheException {
+    private void tryComplete(long sourceAvailable) throws ProxyCacheException {
         synchronized (stopLock) {
-            if (!isStopped() && cache.available() == source.length()) {
+            if (!isStopped() && sourceAvailable >= 0 && cache.available() == sourceAvailable) {
                 cache.complete();
             }
         }
     }
 
+    private boolean isBackground() {
+        return priority < ProxyExecutor.PRIORITY_PLAYBACK;
+    }
+
     private boolean isStopped() {
         return Thread.currentThread().isInterrupted() || stopped;
     }
@@ -176,11 +776,133 @@ class ProxyCache {
         }
     }
 
+    /**
+     * Cache without gaps: only its prefix is available, data is only appended to it.
+     */
+    private static final class SequentialCache implements SparseCache {
+
+        private final Cache cache;
+
+        SequentialCache(Cache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public long available() throws ProxyCacheException {
+            return cache.available();
+        }
+
+        @Override
+        public long available(long offset) throws ProxyCacheException {
+            long available = cache.available();
+            return offset < available ? available - offset : 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
+            return cache.read(buffer, offset, length);
+        }
+
+        @Override
+        public void append(byte[] data, int length) throws ProxyCacheException {
+            cache.append(data, length);
+        }
+
+        @Override
+        public void write(byte[] data, long offset, int length) throws ProxyCacheException {
+            if (offset != cache.available()) {
+                throw new ProxyCacheException("Cache " + cache + " supports only appending, can't write at " + offset);
+            }
+            cache.append(data, length);
+        }
+
+        @Override
+        public void close() throws ProxyCacheException {
+            cache.close();
+        }
+
+        @Override
+        public void complete() throws ProxyCacheException {
+            cache.complete();
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return cache.isCompleted();
+        }
+    }
+
+    /**
+     * Opens new connections to source for segment readers.
+     */
+    interface SegmentSourceFactory {
+
+        /**
+         * Opens new connection to source for reading bytes range {@code [offset, end)}.
+         *
+         * @param offset first byte of segment.
+         * @param end    last byte of segment (exclusive).
+         * @return opened source.
+         * @throws ProxyCacheException if error occur while opening source.
+         */
+        Source open(long offset, long end) throws ProxyCacheException;
+    }
+
+    /**
+     * Callback of {@link #prefetch(long, PrefetchCallback)}.
+     */
+    interface PrefetchCallback {
+
+        /**
+         * @param error an error prefetch is failed with, {@code null} if prefetched data is cached.
+         */
+        void onPrefetchFinished(ProxyCacheException error);
+    }
+
+    private static final class Segment {
+
+        private final long start;
+        private final long end;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private class SegmentReaderRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            readSegments();
+        }
+    }
+
+    private class TailReaderRunnable implements Runnable {
+
+        private final Segment segment;
+
+        TailReaderRunnable(Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public void run() {
+            readTail(segment);
+        }
+    }
+
     private class SourceReaderRunnable implements Runnable {
 
+        private final long offset;
+
+        SourceReaderRunnable(long offset) {
+            this.offset = offset;
+        }
+
         @Override
         public void run() {
-            readSource();
+            readSource(offset);
         }
     }
 }
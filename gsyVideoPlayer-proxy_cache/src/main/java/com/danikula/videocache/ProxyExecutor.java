@@ -0,0 +1,395 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads for background work of proxy: reading sources, downloading segments, prefetching, maintaining cache.
+ * Threads are reused, so starting new reader for every url (e.g. while user swipes feed) doesn't create new thread.
+ * <p>
+ * Short tasks ({@link #submit(Runnable, int)}) run on bounded pool. If all its threads are busy, tasks wait
+ * in queue ordered by priority, tasks with equal priority are run in order of submission. Running tasks are never
+ * preempted, priority only defines which waiting task runs first.
+ * <p>
+ * Readers ({@link #submitReader(Runnable, int)}) hold their thread for whole download, so they run on separate
+ * bounded pool and never delay short tasks. Readers with priority below {@link #PRIORITY_PLAYBACK} (segment and
+ * prefetch readers) may take only half of its threads, the rest wait in queue ordered by priority, so readers
+ * of played urls are never starved by background ones.
+ */
+public final class ProxyExecutor {
+
+    /**
+     * Priority of reading source for client, e.g. currently playing video.
+     */
+    public static final int PRIORITY_PLAYBACK = 30;
+    /**
+     * Priority of downloading segments ahead of main reader.
+     */
+    public static final int PRIORITY_SEGMENT = 20;
+    /**
+     * Priority of downloading data no client waits for yet.
+     */
+    public static final int PRIORITY_PREFETCH = 10;
+    /**
+     * Priority of cache maintenance, e.g. trimming cache.
+     */
+    public static final int PRIORITY_MAINTENANCE = 0;
+
+    public static final int DEFAULT_MAX_THREADS = 8;
+    public static final int DEFAULT_MAX_READERS = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static volatile ProxyExecutor defaultExecutor;
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor readers;
+    private final int maxBackgroundReaders;
+    private final Object readersLock = new Object();
+    private final PriorityQueue<ReaderTask> pendingReaders = new PriorityQueue<>();
+    private int backgroundReaders;
+    private ScheduledExecutorService timer;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param maxThreads max count of threads running short tasks concurrently, readers run on separate
+     *                   {@link #DEFAULT_MAX_READERS} threads.
+     */
+    public ProxyExecutor(int maxThreads) {
+        this(maxThreads, DEFAULT_MAX_READERS);
+    }
+
+    /**
+     * @param maxThreads max count of threads running short tasks concurrently.
+     * @param maxReaders max count of concurrently running readers, half of them at most are background ones.
+     */
+    public ProxyExecutor(int maxThreads, int maxReaders) {
+        checkArgument(maxThreads > 0, "Threads count must be positive");
+        checkArgument(maxReaders > 1, "Readers count must be more than 1");
+        this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory("ProxyCache worker "));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.readers = new ThreadPoolExecutor(maxReaders, maxReaders, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory("ProxyCache reader "));
+        this.readers.allowCoreThreadTimeOut(true);
+        this.maxBackgroundReaders = maxReaders / 2;
+    }
+
+    /**
+     * Returns executor shared by all proxy components by default.
+     *
+     * @return shared executor with {@link #DEFAULT_MAX_THREADS} threads for short tasks.
+     */
+    public static ProxyExecutor getDefault() {
+        if (defaultExecutor == null) {
+            synchronized (ProxyExecutor.class) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = new ProxyExecutor(DEFAULT_MAX_THREADS);
+                }
+            }
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Submits short task for execution, e.g. saving or trimming cache.
+     *
+     * @param task     a task to be run.
+     * @param priority priority of task, e.g. {@link #PRIORITY_PLAYBACK}.
+     * @return future to cancel (and interrupt) task with.
+     */
+    public Future<?> submit(Runnable task, int priority) {
+        PrioritizedTask prioritizedTask = new PrioritizedTask(checkNotNull(task), priority, sequence.getAndIncrement());
+        executor.execute(prioritizedTask);
+        return prioritizedTask;
+    }
+
+    /**
+     * Submits reader, i.e. task downloading source until it is stopped or source ends. Short tasks never wait
+     * for readers. Reader waits for free reader's thread if all of them are busy, background reader also waits
+     * while half of threads are taken by other background readers.
+     *
+     * @param task     a reader to be run.
+     * @param priority priority of reader, e.g. {@link #PRIORITY_PLAYBACK}.
+     * @return future to cancel (and interrupt) reader with.
+     */
+    public Future<?> submitReader(Runnable task, int priority) {
+        ReaderTask readerTask = new ReaderTask(checkNotNull(task), priority, sequence.getAndIncrement());
+        synchronized (readersLock) {
+            startReader(readerTask);
+        }
+        return readerTask;
+    }
+
+    /**
+     * Raises priority of submitted reader, e.g. once prefetched url is played. Waiting reader is moved ahead
+     * of readers with lower priority, running background reader gives its place to waiting background ones.
+     *
+     * @param reader   a future returned by {@link #submitReader(Runnable, int)}.
+     * @param priority new priority of reader, lower one is ignored.
+     */
+    public void raiseReaderPriority(Future<?> reader, int priority) {
+        if (!(reader instanceof ReaderTask)) {
+            return;
+        }
+        ReaderTask readerTask = (ReaderTask) reader;
+        synchronized (readersLock) {
+            if (priority <= readerTask.priority || readerTask.isDone()) {
+                return;
+            }
+            boolean waiting = pendingReaders.remove(readerTask) || readers.remove(readerTask);
+            readerTask.priority = priority; // safe, task isn't in any queue now
+            if (!isBackground(priority)) {
+                releaseBackgroundPlace(readerTask);
+            }
+            if (waiting) {
+                startReader(readerTask);
+            }
+            startPendingReaders();
+        }
+    }
+
+    private void startReader(ReaderTask readerTask) {
+        if (isBackground(readerTask.priority) && !readerTask.background) {
+            pendingReaders.add(readerTask);
+            startPendingReaders();
+        } else {
+            readers.execute(readerTask);
+        }
+    }
+
+    private void startPendingReaders() {
+        while (backgroundReaders < maxBackgroundReaders && !pendingReaders.isEmpty()) {
+            ReaderTask readerTask = pendingReaders.poll();
+            readerTask.background = true;
+            backgroundReaders++;
+            readers.execute(readerTask);
+        }
+    }
+
+    private void releaseBackgroundPlace(ReaderTask readerTask) {
+        if (readerTask.background) {
+            readerTask.background = false;
+            backgroundReaders--;
+        }
+    }
+
+    private void onReaderFinished(ReaderTask readerTask) {
+        synchronized (readersLock) {
+            pendingReaders.remove(readerTask); // cancelled while waiting
+            releaseBackgroundPlace(readerTask);
+            startPendingReaders();
+        }
+    }
+
+    private static boolean isBackground(int priority) {
+        return priority < PRIORITY_PLAYBACK;
+    }
+
+    /**
+     * Submits task for execution after delay. Timer only waits for delay, task itself is run by this executor.
+     *
+     * @param task     a task to be run.
+     * @param delay    a delay in milliseconds.
+     * @param priority priority of task, e.g. {@link #PRIORITY_MAINTENANCE}.
+     * @return future to cancel task with while it is waiting for delay.
+     */
+    public Future<?> schedule(final Runnable task, long delay, final int priority) {
+        checkNotNull(task);
+        return getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                submit(task, priority);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates executor that runs its tasks on this executor one by one in order of submission,
+     * e.g. for work that isn't thread safe.
+     *
+     * @param priority priority of tasks.
+     * @return serial executor.
+     */
+    public Executor newSerialExecutor(int priority) {
+        return new SerialExecutor(priority);
+    }
+
+    private synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ProxyCache timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * @return approximate count of readers running right now.
+     */
+    public int getActiveReaderCount() {
+        return readers.getActiveCount();
+    }
+
+    /**
+     * @return count of readers waiting for free thread.
+     */
+    public int getPendingReaderCount() {
+        synchronized (readersLock) {
+            return pendingReaders.size() + readers.getQueue().size();
+        }
+    }
+
+    /**
+     * @return count of short tasks waiting for free thread.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return approximate count of threads running short tasks right now.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return count of threads in pool of short tasks, including idle ones.
+     */
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    public int getMaxThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return approximate count of completed short tasks since creation.
+     */
+    public long getCompletedTaskCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    private static class PrioritizedTask extends FutureTask<Void> implements Comparable<PrioritizedTask> {
+
+        int priority; // changed only while task isn't queued
+        private final long sequence;
+
+        PrioritizedTask(Runnable task, int priority, long sequence) {
+            super(task, null);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+
+        @Override
+        protected void done() {
+            try {
+                if (!isCancelled()) {
+                    get(); // rethrows error of task, if any
+                }
+            } catch (Exception e) {
+                HttpProxyCacheDebuger.printfError("Error running background task", e);
+            }
+        }
+    }
+
+    private final class ReaderTask extends PrioritizedTask {
+
+        boolean background; // takes one of places of background readers, guarded by readersLock
+
+        ReaderTask(Runnable task, int priority, long sequence) {
+            super(task, priority, sequence);
+        }
+
+        @Override
+        protected void done() {
+            super.done();
+            onReaderFinished(this);
+        }
+    }
+
+    private final class SerialExecutor implements Executor {
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private final int priority;
+        private boolean running;
+
+        SerialExecutor(int priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(checkNotNull(task));
+            if (!running) {
+                running = true;
+                submit(new SerialRunnable(), priority);
+            }
+        }
+
+        private synchronized Runnable next() {
+            Runnable task = tasks.poll();
+            running = task != null;
+            return task;
+        }
+
+        private final class SerialRunnable implements Runnable {
+
+            @Override
+            public void run() {
+                Runnable task;
+                while ((task = next()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        HttpProxyCacheDebuger.printfError("Error running serial task", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.danikula.videocache;
+
+/**
+ * Defines how {@link HttpProxyCacheServer} accepts connections and processes requests.
+ *
+ * @see HttpProxyCacheServer.Builder#requestEngine(RequestEngine)
+ */
+public enum RequestEngine {
+
+    /**
+     * Connections are accepted by blocking thread and processed by fixed pool of 8 threads.
+     * Every connection holds pool's thread while reading request and writing response,
+     * so 9th concurrent stream waits until one of previous streams is finished.
+     */
+    FIXED_POOL,
+
+    /**
+     * Connections are accepted and requests are read by single {@link java.nio.channels.Selector} thread without blocking.
+     * Only connections with completely received request get thread for streaming response,
+     * there is no limit of concurrent streams. Used by default.
+     */
+    SELECTOR
+}
@@ -0,0 +1,175 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkAllNotNull;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Accepts connections and reads requests for {@link HttpProxyCacheServer} with single {@link Selector}.
+ * <p>
+ * Connection is switched to blocking mode and passed to {@link RequestHandler} only when whole request is received,
+ * so slow or idle clients don't hold any thread.
+ *
+ * @see RequestEngine#SELECTOR
+ */
+final class SelectorRequestDispatcher {
+
+    private final ServerSocketChannel serverSocketChannel;
+    private final ExecutorService socketProcessor;
+    private final RequestHandler requestHandler;
+    private final Selector selector;
+    private final Map<SocketChannel, GetRequest> receivedRequests = new LinkedHashMap<>();
+    private final Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+    SelectorRequestDispatcher(ServerSocketChannel serverSocketChannel, ExecutorService socketProcessor, RequestHandler requestHandler) throws IOException {
+        checkAllNotNull(serverSocketChannel, socketProcessor, requestHandler);
+        this.serverSocketChannel = serverSocketChannel;
+        this.socketProcessor = socketProcessor;
+        this.requestHandler = requestHandler;
+        this.selector = Selector.open();
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Dispatches requests until current thread is interrupted or {@link #shutdown()} is called.
+     */
+    void run() throws IOException {
+        try {
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+                selector.select();
+                do {
+                    processSelectedKeys();
+                } while (dispatchReceivedRequests());
+            }
+        } catch (ClosedSelectorException e) {
+            // selector is closed by shutdown
+        }
+    }
+
+    void shutdown() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error closing selector", e);
+        }
+    }
+
+    private void processSelectedKeys() throws IOException {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                read(key);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if some keys were selected while dispatching and should be processed.
+     */
+    private boolean dispatchReceivedRequests() throws IOException {
+        if (receivedRequests.isEmpty()) {
+            return false;
+        }
+        selector.selectNow(); // deregister cancelled channels, otherwise they can't be switched to blocking mode
+        for (Map.Entry<SocketChannel, GetRequest> received : receivedRequests.entrySet()) {
+            dispatch(received.getKey(), received.getValue());
+        }
+        receivedRequests.clear();
+        return !selector.selectedKeys().isEmpty();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverSocketChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            ByteBuffer buffer = freeBuffers.poll();
+            channel.register(selector, SelectionKey.OP_READ, buffer != null ? buffer : ByteBuffer.allocate(GetRequest.MAX_REQUEST_SIZE));
+        }
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+        try {
+            int read = channel.read(buffer);
+            if (read == -1) {
+                close(key);
+                return;
+            }
+            int requestEnd = GetRequest.findRequestEnd(buffer.array(), buffer.position());
+            if (requestEnd >= 0) {
+                GetRequest request = GetRequest.parse(buffer.array(), requestEnd);
+                cancel(key);
+                receivedRequests.put(channel, request);
+            } else if (!buffer.hasRemaining()) {
+                HttpProxyCacheDebuger.printfWarning("Request is too long, connection is closed");
+                close(key);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            HttpProxyCacheDebuger.printfError("Error reading request", e);
+            close(key);
+        }
+    }
+
+    private void dispatch(final SocketChannel channel, final GetRequest request) {
+        try {
+            channel.configureBlocking(true);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error switching connection to blocking mode", e);
+            ProxyCacheUtils.close(channel);
+            return;
+        }
+        socketProcessor.submit(new Runnable() {
+            @Override
+            public void run() {
+                requestHandler.handle(request, channel.socket());
+            }
+        });
+    }
+
+    private void close(SelectionKey key) {
+        cancel(key);
+        ProxyCacheUtils.close(key.channel());
+    }
+
+    /**
+     * Cancels key and returns its buffer to pool, so buffers are allocated only for concurrently read requests.
+     */
+    private void cancel(SelectionKey key) {
+        key.cancel();
+        ByteBuffer buffer = (ByteBuffer) key.attach(null);
+        if (buffer != null) {
+            buffer.clear();
+            freeBuffers.push(buffer);
+        }
+    }
+
+    /**
+     * Handles completely received request, called on {@link ExecutorService} passed to dispatcher.
+     */
+    interface RequestHandler {
+
+        void handle(GetRequest request, Socket socket);
+    }
+}
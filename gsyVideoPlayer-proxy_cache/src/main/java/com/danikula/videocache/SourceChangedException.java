@@ -0,0 +1,14 @@
+package com.danikula.videocache;
+
+/**
+ * Indicates that source's content is changed since data was cached, e.g. validators (ETag or Last-Modified)
+ * returned by server differ from stored ones. Cached data of such source can't be used anymore.
+ */
+public class SourceChangedException extends ProxyCacheException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SourceChangedException(String message) {
+        super(message);
+    }
+}
@@ -12,11 +12,66 @@ public class SourceInfo {
     public final String url;
     public final long length;
     public final String mime;
+    /**
+     * Value of ETag header or {@code null} if it is unknown.
+     */
+    public final String etag;
+    /**
+     * Value of Last-Modified header or {@code null} if it is unknown.
+     */
+    public final String lastModified;
+    /**
+     * Final url of redirects from {@link #url} or {@code null} if it is unknown.
+     */
+    public final String redirectUrl;
+    /**
+     * Time {@link #redirectUrl} was received at, in milliseconds since epoch.
+     */
+    public final long redirectTime;
 
     public SourceInfo(String url, long length, String mime) {
+        this(url, length, mime, null, null);
+    }
+
+    public SourceInfo(String url, long length, String mime, String etag, String lastModified) {
+        this(url, length, mime, etag, lastModified, null, 0);
+    }
+
+    public SourceInfo(String url, long length, String mime, String etag, String lastModified, String redirectUrl, long redirectTime) {
         this.url = url;
         this.length = length;
         this.mime = mime;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.redirectUrl = redirectUrl;
+        this.redirectTime = redirectTime;
+    }
+
+    /**
+     * Returns validator to be sent as If-Range header for resuming download.
+     * Weak ETag can't be used for range requests, Last-Modified is used instead of it.
+     *
+     * @return strong ETag, Last-Modified or {@code null} if source has no validators.
+     */
+    public String getRangeValidator() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Checks if other info describes another version of the same source. Only validators known for both infos
+     * are compared, so info without validators never differs.
+     *
+     * @param other info received from server.
+     * @return {@code true} if content is changed.
+     */
+    public boolean isChanged(SourceInfo other) {
+        if (etag != null && other.etag != null) {
+            return !etag.equals(other.etag);
+        }
+        return lastModified != null && other.lastModified != null && !lastModified.equals(other.lastModified);
     }
 
     @NonNull
@@ -26,6 +81,10 @@ public class SourceInfo {
                 "url='" + url + '\'' +
                 ", length=" + length +
                 ", mime='" + mime + '\'' +
+                ", etag='" + etag + '\'' +
+                ", lastModified='" + lastModified + '\'' +
+                ", redirectUrl='" + redirectUrl + '\'' +
+                ", redirectTime=" + redirectTime +
                 '}';
     }
 }
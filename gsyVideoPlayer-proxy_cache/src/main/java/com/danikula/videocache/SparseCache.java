@@ -0,0 +1,31 @@
+package com.danikula.videocache;
+
+/**
+ * {@link Cache} able to keep several not connected ranges of source, e.g. data cached after seek or downloaded
+ * by several readers in parallel.
+ * <p>
+ * {@link ProxyCache} reads source with gaps and in parallel only into such cache, other caches are filled
+ * from the beginning by single reader.
+ */
+public interface SparseCache extends Cache {
+
+    /**
+     * Returns count of bytes cached continuously starting from passed offset.
+     * Cache may contain several not connected ranges, so this value may be positive even if {@code offset > available()}.
+     *
+     * @param offset an offset in source.
+     * @return count of cached bytes or {@code 0} if byte with passed offset is not cached yet.
+     * @throws ProxyCacheException if error occur while accessing cache.
+     */
+    long available(long offset) throws ProxyCacheException;
+
+    /**
+     * Writes data at passed offset, it may leave gap between already cached data and new one.
+     *
+     * @param data   data to be written.
+     * @param offset an offset in source the data belongs to.
+     * @param length count of bytes from {@code data} to be written.
+     * @throws ProxyCacheException if error occur while writing data.
+     */
+    void write(byte[] data, long offset, int length) throws ProxyCacheException;
+}
@@ -0,0 +1,171 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * {@link SSLSocketFactory} shared by all https sources of proxy, so TLS sessions are resumed and connections are
+ * reused between requests (connection pool of {@link HttpsURLConnection} doesn't share connections created by
+ * different factories). Counts handshakes and their durations in {@link CacheStatsRecorder}.
+ * <p>
+ * If custom trust managers are passed, factory has its own {@link SSLContext} with session cache, otherwise
+ * it delegates to {@link HttpsURLConnection#getDefaultSSLSocketFactory()}, so platform's defaults are kept.
+ */
+public final class TlsSocketFactory extends SSLSocketFactory {
+
+    private static final int SESSION_CACHE_SIZE = 64;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private static TlsSocketFactory sharedDefault;
+    private static List<TrustManager> sharedTrustManagers;
+    private static TlsSocketFactory sharedCustom;
+
+    private final SSLSocketFactory delegate;
+    private final CacheStatsRecorder stats;
+
+    private TlsSocketFactory(SSLSocketFactory delegate, CacheStatsRecorder stats) {
+        this.delegate = delegate;
+        this.stats = checkNotNull(stats);
+    }
+
+    /**
+     * Creates new factory.
+     *
+     * @param trustManagers trust managers to verify servers with or {@code null} to use platform's default factory.
+     * @param stats         a recorder of handshakes.
+     * @return socket factory.
+     */
+    public static TlsSocketFactory newInstance(TrustManager[] trustManagers, CacheStatsRecorder stats) {
+        if (trustManagers == null) {
+            return new TlsSocketFactory(null, stats);
+        }
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, trustManagers, new SecureRandom());
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            }
+            return new TlsSocketFactory(sslContext.getSocketFactory(), stats);
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            HttpProxyCacheDebuger.printfError("Error creating ssl context with custom trust managers, default one is used", e);
+            return new TlsSocketFactory(null, stats);
+        }
+    }
+
+    /**
+     * Returns factory shared by sources created without config of proxy server, so they share TLS sessions too.
+     * Factory is created lazily and reused while the same trust managers are passed, handshakes aren't counted
+     * in stats of any server.
+     *
+     * @param trustManagers trust managers to verify servers with or {@code null} to use platform's default factory.
+     * @return shared socket factory.
+     */
+    static synchronized TlsSocketFactory getShared(TrustManager[] trustManagers) {
+        if (trustManagers == null) {
+            if (sharedDefault == null) {
+                sharedDefault = newInstance(null, new CacheStatsRecorder());
+            }
+            return sharedDefault;
+        }
+        List<TrustManager> key = Arrays.asList(trustManagers.clone());
+        if (sharedCustom == null || !key.equals(sharedTrustManagers)) {
+            sharedTrustManagers = key;
+            sharedCustom = newInstance(trustManagers, new CacheStatsRecorder());
+        }
+        return sharedCustom;
+    }
+
+    private SSLSocketFactory delegate() {
+        return delegate != null ? delegate : HttpsURLConnection.getDefaultSSLSocketFactory();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate().getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate().getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return track(delegate().createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        return track(delegate().createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return track(delegate().createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return track(delegate().createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return track(delegate().createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return track(delegate().createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket track(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeTracker());
+        }
+        return socket;
+    }
+
+    /**
+     * Measures handshake from socket creation, so for not layered sockets duration includes tcp connection.
+     * Session created before socket means it is resumed.
+     */
+    private final class HandshakeTracker implements HandshakeCompletedListener {
+
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private boolean completed;
+
+        @Override
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            synchronized (this) {
+                if (completed) {
+                    return; // renegotiation is not new connection
+                }
+                completed = true;
+            }
+            long durationMs = (System.nanoTime() - startNanos) / 1000000;
+            boolean resumed = event.getSession().getCreationTime() < startMillis;
+            stats.onTlsHandshake(durationMs, resumed);
+        }
+    }
+}
@@ -1,40 +1,98 @@
 package com.danikula.videocache.file;
 
-import com.danikula.videocache.Cache;
+import com.danikula.videocache.ByteRanges;
+import com.danikula.videocache.SparseCache;
+import com.danikula.videocache.CacheStatsRecorder;
+import com.danikula.videocache.HttpProxyCacheDebuger;
 import com.danikula.videocache.ProxyCacheException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * {@link Cache} that uses file for storing data.
+ * {@link SparseCache} that uses file for storing data.
+ * <p>
+ * Not completed cache may contain several not connected ranges of source (e.g. if user seeks video far from
+ * downloaded part), in this case map of cached ranges is stored next to temp file in {@link #RANGES_POSTFIX} file.
+ * Temp file without ranges map always contains single range from the beginning of source.
+ * <p>
+ * Written data is collected in write-behind buffers (one per written region, so parallel readers of source don't
+ * flush each other) and written to file by large blocks when buffer is full, when there is no buffer to continue,
+ * and on closing or completion. Map of cached ranges is updated right away, so readers get buffered data from memory
+ * without waiting for flush.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
-public class FileCache implements Cache {
+public class FileCache implements SparseCache {
 
-    private static final String TEMP_POSTFIX = ".download";
+    public static final String TEMP_POSTFIX = ".download";
+    public static final int DEFAULT_WRITE_BUFFER_SIZE = 256 * 1024;
+    static final String RANGES_POSTFIX = ".ranges";
+    private static final int MAX_WRITE_BUFFERS = 4;
+    private static final Map<File, Integer> OPENED_FILES = new HashMap<>();
 
     private final DiskUsage diskUsage;
+    private final CacheStatsRecorder stats;
     public File file;
     private RandomAccessFile dataFile;
+    private ByteRanges ranges;
+    private long completedLength;
+    private final int writeBufferSize;
+    private final List<WriteBuffer> writeBuffers = new ArrayList<>(); // the last one is most recently written
 
     public FileCache(File file) throws ProxyCacheException {
         this(file, new UnlimitedDiskUsage());
     }
 
     public FileCache(File file, DiskUsage diskUsage) throws ProxyCacheException {
+        this(file, diskUsage, new CacheStatsRecorder());
+    }
+
+    public FileCache(File file, DiskUsage diskUsage, CacheStatsRecorder stats) throws ProxyCacheException {
+        this(file, diskUsage, stats, DEFAULT_WRITE_BUFFER_SIZE);
+    }
+
+    /**
+     * @param writeBufferSize size of write-behind buffer in bytes, {@code 0} means data is written to file right away.
+     */
+    public FileCache(File file, DiskUsage diskUsage, CacheStatsRecorder stats, int writeBufferSize) throws ProxyCacheException {
         try {
-            if (diskUsage == null) {
+            if (diskUsage == null || stats == null) {
                 throw new NullPointerException();
             }
+            if (writeBufferSize < 0) {
+                throw new IllegalArgumentException("Write buffer size can't be negative");
+            }
             this.diskUsage = diskUsage;
+            this.stats = stats;
+            this.writeBufferSize = writeBufferSize;
             File directory = file.getParentFile();
             Files.makeDir(directory);
             boolean completed = file.exists();
-            this.file = completed ? file : new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
+            this.file = completed ? file : getTempFile(file);
             this.dataFile = new RandomAccessFile(this.file, completed ? "r" : "rw");
+            onOpened(this.file);
+            if (completed) {
+                this.completedLength = dataFile.length();
+            } else {
+                this.ranges = readRanges(this.file, dataFile.length());
+            }
         } catch (IOException e) {
             throw new ProxyCacheException("Error using file " + file + " as disc cache", e);
         }
@@ -42,42 +100,246 @@ public class FileCache implements Cache {
 
     @Override
     public synchronized long available() throws ProxyCacheException {
-        try {
-            return (int) dataFile.length();
-        } catch (IOException e) {
-            throw new ProxyCacheException("Error reading length of file " + file, e);
-        }
+        return available(0);
+    }
+
+    @Override
+    public synchronized long available(long offset) throws ProxyCacheException {
+        return isCompleted() ? Math.max(0, completedLength - offset) : ranges.availableFrom(offset);
     }
 
     @Override
     public synchronized int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
         try {
+            int count = (int) Math.min(length, available(offset));
+            if (count <= 0) {
+                return -1;
+            }
+            WriteBuffer writeBuffer = findBuffer(offset);
+            if (writeBuffer != null) {
+                count = (int) Math.min(count, writeBuffer.end() - offset);
+                System.arraycopy(writeBuffer.data, (int) (offset - writeBuffer.offset), buffer, 0, count);
+                return count;
+            }
+            count = (int) flushedCount(offset, count);
             dataFile.seek(offset);
-            return dataFile.read(buffer, 0, length);
+            int read = dataFile.read(buffer, 0, count);
+            stats.onDiskRead(Math.max(read, 0));
+            return read;
         } catch (IOException e) {
             String format = "Error reading %d bytes with offset %d from file[%d bytes] to buffer[%d bytes]";
             throw new ProxyCacheException(String.format(format, length, offset, available(), buffer.length), e);
         }
     }
 
+    /**
+     * Transfers cached bytes directly from cache file to passed channel, without copying data through java heap.
+     * Lock is not held while transferring, so writing new data to cache is not blocked by slow client.
+     * Data that is not flushed to file yet is copied from write buffer.
+     *
+     * @param offset   an offset in source to transfer data from.
+     * @param maxCount max count of bytes to be transferred.
+     * @param target   a channel to write data to, e.g. client socket's channel.
+     * @return count of transferred bytes, {@code 0} if cache file was reopened while transferring and
+     * method should be called again, or {@code -1} if byte with passed offset is not cached.
+     * @throws ProxyCacheException if cache is closed.
+     * @throws IOException         if error occur while writing to target.
+     */
+    public long transferTo(long offset, long maxCount, WritableByteChannel target) throws ProxyCacheException, IOException {
+        FileChannel channel;
+        long count;
+        ByteBuffer buffered = null;
+        synchronized (this) {
+            count = Math.min(maxCount, available(offset));
+            WriteBuffer writeBuffer = count > 0 ? findBuffer(offset) : null;
+            if (writeBuffer != null) {
+                int start = (int) (offset - writeBuffer.offset);
+                int end = (int) Math.min(writeBuffer.length, start + count);
+                buffered = ByteBuffer.wrap(Arrays.copyOfRange(writeBuffer.data, start, end));
+            } else {
+                count = flushedCount(offset, count);
+            }
+            channel = dataFile.getChannel();
+        }
+        if (count <= 0) {
+            return -1;
+        }
+        if (buffered != null) {
+            int transferred = buffered.remaining();
+            while (buffered.hasRemaining()) {
+                target.write(buffered);
+            }
+            return transferred;
+        }
+        try {
+            long transferred = channel.transferTo(offset, count, target);
+            stats.onDiskRead(transferred);
+            return transferred;
+        } catch (ClosedChannelException e) {
+            if (channel.isOpen()) {
+                throw e; // target is closed
+            }
+            synchronized (this) {
+                if (dataFile.getChannel() == channel) {
+                    throw new ProxyCacheException("Error transferring data: cache file " + file + " is closed", e);
+                }
+            }
+            return 0; // file is reopened on completion, just retry with new channel
+        }
+    }
+
     @Override
     public synchronized void append(byte[] data, int length) throws ProxyCacheException {
+        write(data, available(), length);
+    }
+
+    @Override
+    public synchronized void write(byte[] data, long offset, int length) throws ProxyCacheException {
         try {
             if (isCompleted()) {
                 throw new ProxyCacheException("Error append cache: cache file " + file + " is completed!");
             }
-            dataFile.seek(available());
-            dataFile.write(data, 0, length);
+            boolean newRange = offset > 0 && ranges.availableFrom(offset - 1) == 0;
+            if (newRange && !getRangesFile(file).exists()) {
+                // ranges map must exist before file gets any gap, otherwise gap will be treated as cached data
+                flush();
+                writeRanges();
+            }
+            if (!writeToBuffer(data, offset, length)) {
+                writeToFile(data, offset, length);
+            }
+            ranges.add(offset, offset + length);
+        } catch (IOException e) {
+            String format = "Error writing %d bytes with offset %d to %s from buffer with size %d";
+            throw new ProxyCacheException(String.format(format, length, offset, dataFile, data.length), e);
+        }
+    }
+
+    /**
+     * Writes buffered data to file.
+     *
+     * @throws ProxyCacheException if error occur while writing data.
+     */
+    public synchronized void flush() throws ProxyCacheException {
+        try {
+            flushBuffers();
         } catch (IOException e) {
-            String format = "Error writing %d bytes to %s from buffer with size %d";
-            throw new ProxyCacheException(String.format(format, length, dataFile, data.length), e);
+            throw new ProxyCacheException("Error flushing buffered data to " + file, e);
+        }
+    }
+
+    /**
+     * Puts data to buffer continuing written region or to new buffer, the least recently written buffer is flushed
+     * and reused if there are too many buffers.
+     *
+     * @return {@code false} if data can't be buffered and should be written to file.
+     */
+    private boolean writeToBuffer(byte[] data, long offset, int length) throws IOException {
+        if (writeBufferSize == 0 || length > writeBufferSize) {
+            flushBuffers(); // buffered data must not overwrite this data later
+            return false;
+        }
+        WriteBuffer writeBuffer = null;
+        for (WriteBuffer candidate : writeBuffers) {
+            if (candidate.offset <= offset && offset <= candidate.end()) {
+                writeBuffer = candidate;
+                break;
+            }
+        }
+        for (WriteBuffer other : writeBuffers) {
+            if (other != writeBuffer && offset < other.end() && other.offset < offset + length) {
+                flushBuffers(); // buffers never overlap, so every byte has single buffered version
+                return false;
+            }
+        }
+        if (writeBuffer != null && offset + length - writeBuffer.offset > writeBufferSize) {
+            flush(writeBuffer); // full, the same buffer continues region
+            writeBuffers.remove(writeBuffer);
+            writeBuffer.reset(offset);
+        } else if (writeBuffer != null) {
+            writeBuffers.remove(writeBuffer);
+        } else if (writeBuffers.size() < MAX_WRITE_BUFFERS) {
+            writeBuffer = new WriteBuffer(writeBufferSize, offset);
+        } else {
+            writeBuffer = writeBuffers.remove(0);
+            flush(writeBuffer);
+            writeBuffer.reset(offset);
+        }
+        writeBuffers.add(writeBuffer);
+        System.arraycopy(data, 0, writeBuffer.data, (int) (offset - writeBuffer.offset), length);
+        writeBuffer.length = (int) Math.max(writeBuffer.length, offset + length - writeBuffer.offset);
+        return true;
+    }
+
+    private void flushBuffers() throws IOException {
+        while (!writeBuffers.isEmpty()) {
+            flush(writeBuffers.get(0));
+            writeBuffers.remove(0);
+        }
+    }
+
+    private void flush(WriteBuffer writeBuffer) throws IOException {
+        writeToFile(writeBuffer.data, writeBuffer.offset, writeBuffer.length);
+    }
+
+    private void writeToFile(byte[] data, long offset, int length) throws IOException {
+        dataFile.seek(offset);
+        dataFile.write(data, 0, length);
+        stats.onDiskWritten(length);
+    }
+
+    private WriteBuffer findBuffer(long offset) {
+        for (WriteBuffer writeBuffer : writeBuffers) {
+            if (writeBuffer.offset <= offset && offset < writeBuffer.end()) {
+                return writeBuffer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return count of bytes starting from offset that can be read from file, i.e. are not waiting for flush.
+     */
+    private long flushedCount(long offset, long count) {
+        for (WriteBuffer writeBuffer : writeBuffers) {
+            if (offset < writeBuffer.offset && writeBuffer.length > 0) {
+                count = Math.min(count, writeBuffer.offset - offset);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Deletes all cached data, e.g. if source is changed since data was cached. Completed cache is kept as is.
+     *
+     * @throws ProxyCacheException if error occur while truncating file.
+     */
+    public synchronized void discard() throws ProxyCacheException {
+        if (isCompleted()) {
+            return;
+        }
+        try {
+            writeBuffers.clear();
+            dataFile.setLength(0);
+            ranges = new ByteRanges();
+            File rangesFile = getRangesFile(file);
+            if (rangesFile.exists() && !rangesFile.delete()) {
+                throw new IOException("Error deleting ranges file " + rangesFile);
+            }
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error discarding cache file " + file, e);
         }
     }
 
     @Override
     public synchronized void close() throws ProxyCacheException {
         try {
+            if (!isCompleted()) {
+                flush();
+                saveRanges();
+            }
             dataFile.close();
+            onClosed(file);
             diskUsage.touch(file);
         } catch (IOException e) {
             throw new ProxyCacheException("Error closing file " + file, e);
@@ -93,13 +355,20 @@ public class FileCache implements Cache {
         close();
         String fileName = file.getName().substring(0, file.getName().length() - TEMP_POSTFIX.length());
         File completedFile = new File(file.getParentFile(), fileName);
+        File rangesFile = getRangesFile(file);
         boolean renamed = file.renameTo(completedFile);
         if (!renamed) {
             throw new ProxyCacheException("Error renaming file " + file + " to " + completedFile + " for completion!");
         }
+        if (rangesFile.exists() && !rangesFile.delete()) {
+            HttpProxyCacheDebuger.printfWarning("Error deleting ranges file " + rangesFile);
+        }
         file = completedFile;
+        ranges = null;
         try {
             dataFile = new RandomAccessFile(file, "r");
+            onOpened(file);
+            completedLength = dataFile.length();
             diskUsage.touch(file);
         } catch (IOException e) {
             throw new ProxyCacheException("Error opening " + file + " as disc cache", e);
@@ -120,8 +389,107 @@ public class FileCache implements Cache {
         return file;
     }
 
-    private boolean isTempFile(File file) {
+    static boolean isTempFile(File file) {
         return file.getName().endsWith(TEMP_POSTFIX);
     }
 
+    static File getTempFile(File file) {
+        return new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
+    }
+
+    private void saveRanges() throws IOException {
+        File rangesFile = getRangesFile(file);
+        if (ranges.availableFrom(0) == dataFile.length()) {
+            // single range from the beginning, file itself describes it well
+            if (rangesFile.exists() && !rangesFile.delete()) {
+                throw new IOException("Error deleting ranges file " + rangesFile);
+            }
+        } else {
+            writeRanges();
+        }
+    }
+
+    private void writeRanges() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getRangesFile(file))))) {
+            ranges.writeTo(out);
+        }
+    }
+
+    private static ByteRanges readRanges(File file, long fileLength) {
+        File rangesFile = getRangesFile(file);
+        if (rangesFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(rangesFile)))) {
+                return ByteRanges.readFrom(in);
+            } catch (IOException e) {
+                // gaps positions are lost, so nothing in file can be trusted
+                HttpProxyCacheDebuger.printfError("Error reading ranges of " + file + ", cache will be discarded", e);
+                return new ByteRanges();
+            }
+        }
+        ByteRanges ranges = new ByteRanges();
+        ranges.add(0, fileLength);
+        return ranges;
+    }
+
+    static File getRangesFile(File file) {
+        return new File(file.getParentFile(), file.getName() + RANGES_POSTFIX);
+    }
+
+    static boolean isRangesFile(File file) {
+        return file.getName().endsWith(RANGES_POSTFIX);
+    }
+
+    /**
+     * Checks if file is opened by some {@link FileCache}, such files are not deleted while trimming cache.
+     *
+     * @param file a file to check.
+     * @return {@code true} if file is opened.
+     */
+    static boolean isOpened(File file) {
+        synchronized (OPENED_FILES) {
+            return OPENED_FILES.containsKey(file);
+        }
+    }
+
+    private static void onOpened(File file) {
+        synchronized (OPENED_FILES) {
+            Integer count = OPENED_FILES.get(file);
+            OPENED_FILES.put(file, count == null ? 1 : count + 1);
+        }
+    }
+
+    private static void onClosed(File file) {
+        synchronized (OPENED_FILES) {
+            Integer count = OPENED_FILES.get(file);
+            if (count == null || count <= 1) {
+                OPENED_FILES.remove(file);
+            } else {
+                OPENED_FILES.put(file, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Data written to cache but not written to file yet.
+     */
+    private static final class WriteBuffer {
+
+        private final byte[] data;
+        private long offset;
+        private int length;
+
+        WriteBuffer(int size, long offset) {
+            this.data = new byte[size];
+            this.offset = offset;
+        }
+
+        long end() {
+            return offset + length;
+        }
+
+        void reset(long offset) {
+            this.offset = offset;
+            this.length = 0;
+        }
+    }
 }
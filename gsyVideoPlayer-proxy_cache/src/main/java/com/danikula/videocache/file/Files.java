@@ -5,7 +5,7 @@ import com.danikula.videocache.HttpProxyCacheDebuger;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -19,6 +19,7 @@ import java.util.List;
  */
 class Files {
 
+    private static final String TEMP_POSTFIX = ".tmp";
 
     static void makeDir(File directory) throws IOException {
         if (directory.exists()) {
@@ -37,7 +38,13 @@ class Files {
         List<File> result = new LinkedList<>();
         File[] files = directory.listFiles();
         if (files != null) {
-            result = Arrays.asList(files);
+            result = new ArrayList<>(files.length);
+            for (File file : files) {
+                // ranges map lives and dies with its data file, temp file is renamed to its target once written
+                if (!FileCache.isRangesFile(file) && !file.getName().endsWith(TEMP_POSTFIX)) {
+                    result.add(file);
+                }
+            }
             Collections.sort(result, new LastModifiedComparator());
         }
         return result;
@@ -1,13 +1,18 @@
 package com.danikula.videocache.file;
 
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
 import com.danikula.videocache.HttpProxyCacheDebuger;
+import com.danikula.videocache.ProxyExecutor;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * {@link DiskUsage} that uses LRU (Least Recently Used) strategy to trim cache.
@@ -17,60 +22,139 @@ import java.util.concurrent.Executors;
 public abstract class LruDiskUsage implements DiskUsage {
 
 
-    private final ExecutorService workerThread = Executors.newSingleThreadExecutor();
+    private ProxyExecutor executor;
+    private Executor worker;
+    private final Map<File, LruIndex> indexes = new HashMap<>();
+    private final AtomicLong evictedFilesCount = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private final List<EvictionListener> evictionListeners = new CopyOnWriteArrayList<>();
 
     @Override
     public void touch(File file) throws IOException {
-        workerThread.submit(new TouchCallable(file));
+        getWorker().execute(new TouchRunnable(file));
+    }
+
+    /**
+     * Sets executor cache is trimmed on, {@link ProxyExecutor#getDefault()} is used if it isn't set.
+     * Files are touched one by one, so executor can't be changed after first touch.
+     *
+     * @param executor an executor, can't be {@code null}.
+     */
+    public synchronized void setExecutor(ProxyExecutor executor) {
+        checkNotNull(executor);
+        if (worker != null && executor != this.executor) {
+            HttpProxyCacheDebuger.printfWarning("Disk usage is used already, executor isn't changed");
+            return;
+        }
+        this.executor = executor;
+    }
+
+    private synchronized Executor getWorker() {
+        if (worker == null) {
+            ProxyExecutor executor = this.executor != null ? this.executor : ProxyExecutor.getDefault();
+            worker = executor.newSerialExecutor(ProxyExecutor.PRIORITY_MAINTENANCE);
+            this.executor = executor;
+        }
+        return worker;
     }
 
     private void touchInBackground(File file) throws IOException {
         Files.setLastModifiedNow(file);
-        List<File> files = Files.getLruListFiles(file.getParentFile());
-        trim(files);
+        LruIndex index = getIndex(file.getParentFile());
+        if (!file.exists()) {
+            index.remove(file); // stale touch of temp file already renamed on completion
+            return;
+        }
+        if (!FileCache.isTempFile(file)) {
+            index.remove(FileCache.getTempFile(file)); // temp file is renamed to this one on completion
+        }
+        index.touch(file);
+        index.trim(this);
     }
 
-    protected abstract boolean accept(File file, long totalSize, int totalCount);
+    /**
+     * @return count of files deleted for trimming cache since creation.
+     */
+    public long getEvictedFilesCount() {
+        return evictedFilesCount.get();
+    }
 
-    private void trim(List<File> files) {
-        long totalSize = countTotalSize(files);
-        int totalCount = files.size();
-        for (File file : files) {
-            boolean accepted = accept(file, totalSize, totalCount);
-            if (!accepted) {
-                long fileSize = file.length();
-                boolean deleted = file.delete();
-                if (deleted) {
-                    totalCount--;
-                    totalSize -= fileSize;
-                    HttpProxyCacheDebuger.printfLog("Cache file " + file + " is deleted because it exceeds cache limit");
-                } else {
-                    HttpProxyCacheDebuger.printfError("Error deleting file " + file + " for trimming cache");
-                }
-            }
+    /**
+     * @return total size of files deleted for trimming cache since creation.
+     */
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    /**
+     * Adds listener notified about every file deleted for trimming cache. Listener is called on worker thread
+     * of this disk usage, adding the same listener again has no effect.
+     *
+     * @param listener a listener, can't be {@code null}.
+     */
+    public void addEvictionListener(EvictionListener listener) {
+        checkNotNull(listener);
+        if (!evictionListeners.contains(listener)) {
+            evictionListeners.add(listener);
+        }
+    }
+
+    void onEvicted(File file, long size) {
+        evictedFilesCount.incrementAndGet();
+        evictedBytes.addAndGet(size);
+        for (EvictionListener listener : evictionListeners) {
+            listener.onEvicted(file);
         }
     }
 
-    private long countTotalSize(List<File> files) {
-        long totalSize = 0;
-        for (File file : files) {
-            totalSize += file.length();
+    private LruIndex getIndex(File directory) {
+        LruIndex index = indexes.get(directory);
+        if (index == null) {
+            index = new LruIndex(directory);
+            indexes.put(directory, index);
         }
-        return totalSize;
+        return index;
+    }
+
+    protected abstract boolean accept(File file, long totalSize, int totalCount);
+
+    /**
+     * Checks if cache with given totals may need trimming. Trimming stops as soon as this method returns {@code false},
+     * so remaining files aren't passed to {@link #accept(File, long, int)}. Default implementation always returns
+     * {@code true}, i.e. every file is checked; implementations which decision depends on totals only should override it
+     * to avoid iterating whole cache on every touch.
+     *
+     * @param totalSize  total size of all files in cache directory.
+     * @param totalCount total count of files in cache directory.
+     * @return {@code false} if all files can be kept in cache.
+     */
+    protected boolean isTrimNeeded(long totalSize, int totalCount) {
+        return true;
+    }
+
+    /**
+     * Listener of files deleted for trimming cache.
+     */
+    public interface EvictionListener {
+
+        void onEvicted(File file);
     }
 
-    private class TouchCallable implements Callable<Void> {
+    private class TouchRunnable implements Runnable {
 
         private final File file;
 
-        public TouchCallable(File file) {
+        public TouchRunnable(File file) {
             this.file = file;
         }
 
         @Override
-        public Void call() throws Exception {
-            touchInBackground(file);
-            return null;
+        public void run() {
+            try {
+                touchInBackground(file);
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfError("Error touching file " + file, e);
+            }
         }
     }
 }
@@ -0,0 +1,246 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory LRU index of files in cache directory with running total size and count.
+ * <p>
+ * Index is persisted as append-only journal {@link #JOURNAL_FILE_NAME} in the same directory and is loaded lazily:
+ * journal is replayed and reconciled with directory listing on first use only, after that touching file costs O(1)
+ * and trimming costs O(evicted files) instead of listing and sorting whole directory every time
+ * (if {@link LruDiskUsage#isTrimNeeded(long, int)} is overridden, otherwise every file is checked as before).
+ * <p>
+ * Not thread safe, used by single worker thread of {@link LruDiskUsage}.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+class LruIndex {
+
+    static final String JOURNAL_FILE_NAME = ".lru-journal";
+
+    private static final byte OP_TOUCH = 'T';
+    private static final byte OP_REMOVE = 'R';
+    private static final int MIN_RECORDS_TO_COMPACT = 256;
+
+    private final File directory;
+    private final File journalFile;
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, .75f, true);
+    private DataOutputStream journal;
+    private long totalSize;
+    private int journalRecords;
+    private boolean loaded;
+
+    LruIndex(File directory) {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+    }
+
+    static boolean isJournal(File file) {
+        String name = file.getName();
+        return name.startsWith(JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Marks file as most recently used and updates its size.
+     */
+    void touch(File file) throws IOException {
+        load();
+        long size = file.length();
+        put(file.getName(), size);
+        appendRecord(OP_TOUCH, file.getName(), size);
+    }
+
+    /**
+     * Forgets file, e.g. temp file renamed after completion.
+     */
+    void remove(File file) throws IOException {
+        load();
+        if (removeEntry(file.getName())) {
+            appendRecord(OP_REMOVE, file.getName(), 0);
+        }
+    }
+
+    /**
+     * Deletes files rejected by {@link LruDiskUsage#accept(File, long, int)} from least to most recently used
+     * while {@link LruDiskUsage#isTrimNeeded(long, int)} allows. Files opened by {@link FileCache} are never deleted.
+     */
+    void trim(LruDiskUsage diskUsage) throws IOException {
+        load();
+        List<String> removed = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> entries = sizes.entrySet().iterator(); // iteration doesn't change access order
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            File file = new File(directory, entry.getKey());
+            if (!diskUsage.isTrimNeeded(totalSize, sizes.size())) {
+                break;
+            }
+            if (FileCache.isOpened(file) || diskUsage.accept(file, totalSize, sizes.size())) {
+                continue;
+            }
+            if (file.delete() || !file.exists()) {
+                deleteRangesFile(file);
+                diskUsage.onEvicted(file, entry.getValue());
+                totalSize -= entry.getValue();
+                entries.remove();
+                removed.add(entry.getKey());
+                HttpProxyCacheDebuger.printfLog("Cache file " + file + " is deleted because it exceeds cache limit");
+            } else {
+                HttpProxyCacheDebuger.printfError("Error deleting file " + file + " for trimming cache");
+            }
+        }
+        for (String name : removed) {
+            appendRecord(OP_REMOVE, name, 0);
+        }
+    }
+
+    private void deleteRangesFile(File file) {
+        File rangesFile = FileCache.getRangesFile(file);
+        if (rangesFile.exists() && !rangesFile.delete()) {
+            HttpProxyCacheDebuger.printfError("Error deleting ranges file " + rangesFile + " for trimming cache");
+        }
+    }
+
+    private void put(String name, long size) {
+        Long oldSize = sizes.put(name, size);
+        totalSize += size - (oldSize == null ? 0 : oldSize);
+    }
+
+    private boolean removeEntry(String name) {
+        Long size = sizes.remove(name);
+        if (size != null) {
+            totalSize -= size;
+        }
+        return size != null;
+    }
+
+    private void load() throws IOException {
+        if (loaded && journalFile.exists()) {
+            return;
+        }
+        // journal is absent for the first time or deleted with directory content (e.g. by clearing cache)
+        closeJournal();
+        sizes.clear();
+        totalSize = 0;
+        Files.makeDir(directory);
+        if (journalFile.exists()) {
+            readJournal();
+        }
+        reconcile();
+        compact();
+        loaded = true;
+    }
+
+    private void readJournal() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                byte op = in.readByte();
+                String name = in.readUTF();
+                long size = in.readLong();
+                if (op == OP_TOUCH) {
+                    put(name, size);
+                } else if (op == OP_REMOVE) {
+                    removeEntry(name);
+                } else {
+                    throw new IOException("Unknown record type " + op);
+                }
+            }
+        } catch (EOFException e) {
+            // end of journal, last record may be incomplete if app was killed while appending it
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error reading journal " + journalFile + ", index will be rebuilt", e);
+        }
+    }
+
+    /**
+     * Synchronizes index with directory content: forgets deleted files and adds unknown files
+     * as least recently used ones in order of last modification.
+     */
+    private void reconcile() {
+        Set<String> existing = new HashSet<>();
+        List<File> unknown = new ArrayList<>();
+        for (File file : Files.getLruListFiles(directory)) {
+            if (isJournal(file) || file.isDirectory()) {
+                continue;
+            }
+            existing.add(file.getName());
+            if (!sizes.containsKey(file.getName())) {
+                unknown.add(file);
+            }
+        }
+        Map<String, Long> known = new LinkedHashMap<>(sizes);
+        sizes.clear();
+        totalSize = 0;
+        for (File file : unknown) {
+            put(file.getName(), file.length());
+        }
+        for (Map.Entry<String, Long> entry : known.entrySet()) {
+            if (existing.contains(entry.getKey())) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void appendRecord(byte op, String name, long size) throws IOException {
+        if (journalRecords >= Math.max(MIN_RECORDS_TO_COMPACT, sizes.size() * 2)) {
+            compact(); // snapshot already contains this record
+            return;
+        }
+        if (journal == null) {
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        }
+        writeRecord(journal, op, name, size);
+        journal.flush();
+        journalRecords++;
+    }
+
+    /**
+     * Rewrites journal with single record per file.
+     */
+    private void compact() throws IOException {
+        closeJournal();
+        File tempFile = new File(directory, JOURNAL_FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+                writeRecord(out, OP_TOUCH, entry.getKey(), entry.getValue());
+            }
+        }
+        if (!tempFile.renameTo(journalFile)) {
+            throw new IOException("Error replacing journal " + journalFile);
+        }
+        journalRecords = sizes.size();
+    }
+
+    private void writeRecord(DataOutputStream out, byte op, String name, long size) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(name);
+        out.writeLong(size);
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfError("Error closing journal " + journalFile, e);
+            }
+            journal = null;
+        }
+    }
+}
@@ -22,4 +22,9 @@ public class TotalCountLruDiskUsage extends LruDiskUsage {
     protected boolean accept(File file, long totalSize, int totalCount) {
         return totalCount <= maxCount;
     }
+
+    @Override
+    protected boolean isTrimNeeded(long totalSize, int totalCount) {
+        return totalCount > maxCount;
+    }
 }
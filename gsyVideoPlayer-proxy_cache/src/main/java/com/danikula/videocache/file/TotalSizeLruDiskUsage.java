@@ -22,4 +22,9 @@ public class TotalSizeLruDiskUsage extends LruDiskUsage {
     protected boolean accept(File file, long totalSize, int totalCount) {
         return totalSize <= maxSize;
     }
+
+    @Override
+    protected boolean isTrimNeeded(long totalSize, int totalCount) {
+        return totalSize > maxSize;
+    }
 }
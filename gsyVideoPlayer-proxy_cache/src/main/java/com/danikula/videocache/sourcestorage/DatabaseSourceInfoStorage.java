@@ -11,13 +11,19 @@ import android.database.sqlite.SQLiteOpenHelper;
 
 import com.danikula.videocache.SourceInfo;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Database based {@link SourceInfoStorage}.
+ * <p>
+ * Is not used as storage anymore, infos stored by previous versions are migrated to {@link MemorySourceInfoStorage}.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoStorage {
 
+    static final String DATABASE_NAME = "AndroidVideoCache.db";
     private static final String TABLE = "SourceInfo";
     private static final String COLUMN_ID = "_id";
     private static final String COLUMN_URL = "url";
@@ -33,7 +39,7 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
             ");";
 
     DatabaseSourceInfoStorage(Context context) {
-        super(context, "AndroidVideoCache.db", null, 1);
+        super(context, DATABASE_NAME, null, 1);
         checkNotNull(context);
     }
 
@@ -56,6 +62,16 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
         }
     }
 
+    List<SourceInfo> getAll() {
+        List<SourceInfo> sourceInfos = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE, ALL_COLUMNS, null, null, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                sourceInfos.add(convert(cursor));
+            }
+        }
+        return sourceInfos;
+    }
+
     @Override
     public void put(String url, SourceInfo sourceInfo) {
         checkAllNotNull(url, sourceInfo);
@@ -69,6 +85,16 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
         }
     }
 
+    @Override
+    public void prune(Filter filter) {
+        checkNotNull(filter);
+        for (SourceInfo sourceInfo : getAll()) {
+            if (!filter.accept(sourceInfo.url)) {
+                getWritableDatabase().delete(TABLE, COLUMN_URL + "=?", new String[]{sourceInfo.url});
+            }
+        }
+    }
+
     @Override
     public void release() {
         close();
@@ -0,0 +1,258 @@
+package com.danikula.videocache.sourcestorage;
+
+import static com.danikula.videocache.Preconditions.checkAllNotNull;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+import android.content.Context;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+import com.danikula.videocache.ProxyExecutor;
+import com.danikula.videocache.SourceInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link SourceInfoStorage} that keeps all infos in memory and persists them to compact binary file.
+ * <p>
+ * File is read once on first access (not in constructor, so creating storage on main thread is cheap), lookups
+ * never touch disk. Changes are written behind: several puts within {@link #SAVE_DELAY_MS} are saved by single
+ * write of whole snapshot. Infos of urls which aren't cached anymore are removed by {@link #prune(Filter)} before
+ * next write, so snapshot doesn't grow with every url ever played. Infos stored by previous versions in
+ * {@link DatabaseSourceInfoStorage} are migrated on first load, database is deleted after that.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+class MemorySourceInfoStorage implements SourceInfoStorage {
+
+    private static final String FILE_NAME = "AndroidVideoCache.sourceinfo";
+    private static final int MAGIC = 0x53494e46; // "SINF"
+    private static final int VERSION = 3;
+    private static final int MIN_SUPPORTED_VERSION = 1;
+    private static final int MIN_VERSION_WITH_VALIDATORS = 2;
+    private static final int MIN_VERSION_WITH_REDIRECTS = 3;
+    private static final long SAVE_DELAY_MS = 500;
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    private final Context context;
+    private final File file;
+    private final Map<String, SourceInfo> infos = new ConcurrentHashMap<>();
+    private final ProxyExecutor executor;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+    private final AtomicReference<Filter> pruneFilter = new AtomicReference<>();
+    private final Object saveLock = new Object();
+    private volatile boolean loaded;
+    private volatile boolean released;
+
+    MemorySourceInfoStorage(Context context, ProxyExecutor executor) {
+        this.context = checkNotNull(context);
+        this.executor = checkNotNull(executor);
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    @Override
+    public SourceInfo get(String url) {
+        checkNotNull(url);
+        load();
+        return infos.get(url);
+    }
+
+    @Override
+    public void put(String url, SourceInfo sourceInfo) {
+        checkAllNotNull(url, sourceInfo);
+        load();
+        SourceInfo previous = infos.put(url, sourceInfo);
+        if (!isSame(previous, sourceInfo)) {
+            scheduleSave();
+        }
+    }
+
+    @Override
+    public void prune(Filter filter) {
+        checkNotNull(filter);
+        pruneFilter.set(filter); // several evictions within save delay are handled by single pass
+        scheduleSave();
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        if (saveScheduled.getAndSet(false)) {
+            pruneAndSave();
+        }
+    }
+
+    private void scheduleSave() {
+        if (released) {
+            return; // info is kept in memory only
+        }
+        if (saveScheduled.compareAndSet(false, true)) {
+            executor.schedule(new SaveRunnable(), SAVE_DELAY_MS, ProxyExecutor.PRIORITY_MAINTENANCE);
+        }
+    }
+
+    private void pruneAndSave() {
+        Filter filter = pruneFilter.getAndSet(null);
+        if (filter != null) {
+            load();
+            int pruned = 0;
+            Iterator<String> urls = infos.keySet().iterator();
+            while (urls.hasNext()) {
+                if (!filter.accept(urls.next())) {
+                    urls.remove();
+                    pruned++;
+                }
+            }
+            HttpProxyCacheDebuger.printfLog("Source infos of not cached urls are removed: " + pruned);
+        }
+        save();
+    }
+
+    private boolean isSame(SourceInfo first, SourceInfo second) {
+        return first != null && first.length == second.length && isSame(first.mime, second.mime) &&
+            isSame(first.etag, second.etag) && isSame(first.lastModified, second.lastModified) &&
+            isSame(first.redirectUrl, second.redirectUrl) && first.redirectTime == second.redirectTime;
+    }
+
+    private boolean isSame(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            if (file.exists()) {
+                read();
+            } else if (migrateFromDatabase()) {
+                save();
+            }
+            loaded = true;
+        }
+    }
+
+    private void read() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version < MIN_SUPPORTED_VERSION || version > VERSION) {
+                throw new IOException("Unsupported format of " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String url = readString(in);
+                long length = in.readLong();
+                String mime = readNullableString(in);
+                String etag = version >= MIN_VERSION_WITH_VALIDATORS ? readNullableString(in) : null;
+                String lastModified = version >= MIN_VERSION_WITH_VALIDATORS ? readNullableString(in) : null;
+                String redirectUrl = version >= MIN_VERSION_WITH_REDIRECTS ? readNullableString(in) : null;
+                long redirectTime = version >= MIN_VERSION_WITH_REDIRECTS ? in.readLong() : 0;
+                infos.put(url, new SourceInfo(url, length, mime, etag, lastModified, redirectUrl, redirectTime));
+            }
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error reading source infos from " + file + ", they will be fetched again", e);
+            infos.clear();
+        }
+    }
+
+    private boolean migrateFromDatabase() {
+        if (!context.getDatabasePath(DatabaseSourceInfoStorage.DATABASE_NAME).exists()) {
+            return false;
+        }
+        DatabaseSourceInfoStorage database = new DatabaseSourceInfoStorage(context);
+        try {
+            for (SourceInfo sourceInfo : database.getAll()) {
+                infos.put(sourceInfo.url, sourceInfo);
+            }
+        } catch (RuntimeException e) {
+            HttpProxyCacheDebuger.printfError("Error migrating source infos from database", e);
+        } finally {
+            database.release();
+        }
+        context.deleteDatabase(DatabaseSourceInfoStorage.DATABASE_NAME);
+        HttpProxyCacheDebuger.printfLog("Source infos are migrated from database: " + infos.size());
+        return true;
+    }
+
+    private void save() {
+        synchronized (saveLock) {
+            List<SourceInfo> snapshot = new ArrayList<>(infos.values());
+            File tempFile = new File(file.getParentFile(), FILE_NAME + ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(snapshot.size());
+                    for (SourceInfo sourceInfo : snapshot) {
+                        writeString(out, sourceInfo.url);
+                        out.writeLong(sourceInfo.length);
+                        writeNullableString(out, sourceInfo.mime);
+                        writeNullableString(out, sourceInfo.etag);
+                        writeNullableString(out, sourceInfo.lastModified);
+                        writeNullableString(out, sourceInfo.redirectUrl);
+                        out.writeLong(sourceInfo.redirectTime);
+                    }
+                }
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Error renaming " + tempFile + " to " + file);
+                }
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfError("Error saving source infos to " + file, e);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8); // writeUTF is limited by 64K, urls may be longer
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private final class SaveRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            if (saveScheduled.getAndSet(false)) {
+                pruneAndSave();
+            }
+        }
+    }
+}
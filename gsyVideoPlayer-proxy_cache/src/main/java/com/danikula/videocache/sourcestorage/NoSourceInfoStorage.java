@@ -18,6 +18,10 @@ public class NoSourceInfoStorage implements SourceInfoStorage {
     public void put(String url, SourceInfo sourceInfo) {
     }
 
+    @Override
+    public void prune(Filter filter) {
+    }
+
     @Override
     public void release() {
     }
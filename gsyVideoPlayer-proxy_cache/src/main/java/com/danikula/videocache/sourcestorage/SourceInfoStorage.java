@@ -13,5 +13,25 @@ public interface SourceInfoStorage {
 
     void put(String url, SourceInfo sourceInfo);
 
+    /**
+     * Removes infos of urls rejected by filter, e.g. urls whose cached files are evicted.
+     * Storage may apply filter later, but not later than {@link #release()}.
+     *
+     * @param filter a filter of urls whose infos are still needed.
+     */
+    void prune(Filter filter);
+
     void release();
+
+    /**
+     * Filter of urls which infos are kept by {@link #prune(Filter)}.
+     */
+    interface Filter {
+
+        /**
+         * @param url an url of stored info.
+         * @return {@code true} if info of url is still needed, {@code false} if it can be removed.
+         */
+        boolean accept(String url);
+    }
 }
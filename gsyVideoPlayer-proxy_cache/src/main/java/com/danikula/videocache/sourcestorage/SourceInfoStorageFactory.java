@@ -2,6 +2,8 @@ package com.danikula.videocache.sourcestorage;
 
 import android.content.Context;
 
+import com.danikula.videocache.ProxyExecutor;
+
 /**
  * Simple factory for {@link SourceInfoStorage}.
  *
@@ -10,7 +12,11 @@ import android.content.Context;
 public class SourceInfoStorageFactory {
 
     public static SourceInfoStorage newSourceInfoStorage(Context context) {
-        return new DatabaseSourceInfoStorage(context);
+        return newSourceInfoStorage(context, ProxyExecutor.getDefault());
+    }
+
+    public static SourceInfoStorage newSourceInfoStorage(Context context, ProxyExecutor executor) {
+        return new MemorySourceInfoStorage(context, executor);
     }
 
     public static SourceInfoStorage newEmptySourceInfoStorage() {